@@ -97,7 +97,7 @@ class AudioRecordHandle(private var context: Context, private var isVideoStart:
                 audioThread = thread {
                     while (audioRecordStat) {
                         audioReader!!.readSync(audioRecorder!!)?.let {
-                            FFI.onAudioFrameUpdate(it)
+                            FFI.onAudioFrameUpdate(it, audioReader!!.timestampNs)
                         }
                     }
                     // let's release here rather than onDestroy to avoid threading issue
@@ -0,0 +1,47 @@
+package com.carriez.flutter_hbb
+
+import android.media.Image
+
+// Distance in pixels between two sampled points, in both directions. Dense enough that
+// sparse text or a thin line on a black background is not taken for a blank frame.
+private const val BLANK_SAMPLE_STEP = 4
+// Highest values of a black pixel, luma black is 16 in the limited range of `GlScaler`.
+private const val BLANK_MAX_RGB = 8
+private const val BLANK_MAX_LUMA = 20
+
+/**
+ * Tells whether a frame is solid black, as the virtual display renders `FLAG_SECURE` windows
+ * and a screen that is off.
+ *
+ * One pixel in [BLANK_SAMPLE_STEP] x [BLANK_SAMPLE_STEP] is read and the first non-black
+ * one returns, so a frame with content costs a few reads and only a black frame is read through.
+ * A dark UI can still pass now and then, the caller confirms it over several frames.
+ */
+object BlankFrameDetector {
+    /** [format] is one of `VIDEO_FRAME_FORMAT_*`, [width] x [height] the size of the frame. */
+    fun isBlank(image: Image, format: Int, width: Int, height: Int): Boolean {
+        val plane = image.planes[0]
+        val buf = plane.buffer
+        val rs = plane.rowStride
+        val ps = plane.pixelStride
+        for (y in BLANK_SAMPLE_STEP / 2 until height step BLANK_SAMPLE_STEP) {
+            for (x in BLANK_SAMPLE_STEP / 2 until width step BLANK_SAMPLE_STEP) {
+                if (format == VIDEO_FRAME_FORMAT_I420) {
+                    // the Y plane comes first, one byte per pixel
+                    if ((buf.get(y * rs + x).toInt() and 0xFF) > BLANK_MAX_LUMA) {
+                        return false
+                    }
+                } else {
+                    val p = y * rs + x * ps
+                    if ((buf.get(p).toInt() and 0xFF) > BLANK_MAX_RGB ||
+                        (buf.get(p + 1).toInt() and 0xFF) > BLANK_MAX_RGB ||
+                        (buf.get(p + 2).toInt() and 0xFF) > BLANK_MAX_RGB
+                    ) {
+                        return false
+                    }
+                }
+            }
+        }
+        return true
+    }
+}
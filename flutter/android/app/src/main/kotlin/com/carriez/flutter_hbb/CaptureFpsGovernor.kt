@@ -0,0 +1,178 @@
+package com.carriez.flutter_hbb
+
+import android.util.Log
+import kotlin.math.max
+import kotlin.math.min
+
+// Must match `FRAME_FLAG_*` in libs/scrap/src/android/ring.rs
+const val VIDEO_FRAME_FLAG_STALE = 1L shl 32
+const val VIDEO_FRAME_FLAG_IDLE = 1L shl 33
+const val VIDEO_FRAME_FLAG_TIMEOUT = 1L shl 34
+
+const val DEFAULT_CAPTURE_FPS = 30
+const val MIN_CAPTURE_FPS = 1
+const val MAX_CAPTURE_FPS = 120
+const val IDLE_CAPTURE_FPS = 2
+const val SUSPENDED_CAPTURE_FPS = 1
+
+/**
+ * Decides which frames of the virtual display are forwarded to rust.
+ *
+ * The rate is capped by the session's target fps, lowered when rust reports stale frames,
+ * and raised back step by step while rust keeps up. When rust reports an idle screen,
+ * only a keep-alive rate of [IDLE_CAPTURE_FPS] is forwarded.
+ * While [suspended], no screen activity has been seen for a while and only [SUSPENDED_CAPTURE_FPS] is forwarded.
+ * While [blank], the screen is off or black and frames are only checked at [SUSPENDED_CAPTURE_FPS].
+ * With a running [vsync] clock, frames are forwarded every whole number of vsyncs.
+ */
+class CaptureFpsGovernor(private val vsync: VsyncClock? = null) {
+    private val logTag = "LOG_CAPTURE_GOVERNOR"
+
+    private var targetFps = DEFAULT_CAPTURE_FPS
+    private var allowedFps = DEFAULT_CAPTURE_FPS
+    private var idle = false
+    private var suspended = false
+    private var blank = false
+    private var lastForwardNs = 0L
+    private var lastForwardVsync = -1L
+    private var keptUpCount = 0
+    private var slow = false // suspended or blank
+
+    /**
+     * Called with true when only [SUSPENDED_CAPTURE_FPS] is forwarded, because of [suspended]
+     * or [blank], and with false when the capture leaves it. Called under the governor's lock.
+     */
+    var onSlowChanged: ((Boolean) -> Unit)? = null
+
+    val fps: Int
+        @Synchronized get() = when {
+            suspended || blank -> min(SUSPENDED_CAPTURE_FPS, allowedFps)
+            idle -> min(IDLE_CAPTURE_FPS, allowedFps)
+            else -> allowedFps
+        }
+
+    val isSuspended: Boolean
+        @Synchronized get() = suspended
+
+    val isBlank: Boolean
+        @Synchronized get() = blank
+
+    @Synchronized
+    fun setTargetFps(fps: Int) {
+        val v = min(max(fps, MIN_CAPTURE_FPS), MAX_CAPTURE_FPS)
+        if (v != targetFps) {
+            Log.d(logTag, "target fps: $targetFps -> $v")
+        }
+        targetFps = v
+        allowedFps = v
+        keptUpCount = 0
+    }
+
+    @Synchronized
+    fun reset() {
+        allowedFps = targetFps
+        idle = false
+        suspended = false
+        blank = false
+        lastForwardNs = 0L
+        lastForwardVsync = -1L
+        keptUpCount = 0
+        checkSlow()
+    }
+
+    /** Leaving the blank state forwards the next frame right away. */
+    @Synchronized
+    fun setBlank(value: Boolean) {
+        if (blank != value) {
+            Log.d(logTag, "blank: $value")
+            blank = value
+            if (!value) {
+                lastForwardNs = 0L
+                lastForwardVsync = -1L
+            }
+            checkSlow()
+        }
+    }
+
+    /** The next frame is checked right away, without leaving the blank state. */
+    @Synchronized
+    fun checkNow() {
+        lastForwardNs = 0L
+        lastForwardVsync = -1L
+    }
+
+    @Synchronized
+    fun suspend() {
+        if (!suspended) {
+            Log.d(logTag, "suspended")
+            suspended = true
+            checkSlow()
+        }
+    }
+
+    /** The next frame is forwarded right away, it holds the change that woke us. */
+    @Synchronized
+    fun resume() {
+        if (suspended) {
+            Log.d(logTag, "resumed")
+            suspended = false
+            lastForwardNs = 0L
+            lastForwardVsync = -1L
+            checkSlow()
+        }
+    }
+
+    /** [timestampNs] is the monotonic `Image.getTimestamp()` of the frame, called on the thread of [vsync]. */
+    @Synchronized
+    fun shouldForward(timestampNs: Long): Boolean {
+        val interval = 1_000_000_000L / fps
+        val index = vsync?.index(timestampNs) ?: -1L
+        val period = vsync?.periodNs ?: 0L
+        if (index >= 0 && period > 0) {
+            // e.g. 30 fps on 60 Hz is every other vsync, never one then three
+            val step = max(1L, (interval + period / 2) / period)
+            if (lastForwardVsync in 0..index && index - lastForwardVsync < step) {
+                return false
+            }
+            lastForwardVsync = index
+            lastForwardNs = timestampNs
+            return true
+        }
+        // accept a little early, so 30 fps on a 60 Hz display does not drop to 20 fps
+        if (lastForwardNs != 0L && timestampNs - lastForwardNs < interval - interval / 8) {
+            return false
+        }
+        lastForwardNs = timestampNs
+        return true
+    }
+
+    private fun checkSlow() {
+        val value = suspended || blank
+        if (slow != value) {
+            slow = value
+            onSlowChanged?.invoke(value)
+        }
+    }
+
+    /** Flags returned by rust for the forwarded frame. */
+    @Synchronized
+    fun onFrameResult(flags: Long) {
+        val wasIdle = idle
+        idle = (flags and VIDEO_FRAME_FLAG_IDLE) != 0L
+        if (wasIdle != idle) {
+            Log.d(logTag, "idle: $idle")
+        }
+        if ((flags and VIDEO_FRAME_FLAG_STALE) != 0L) {
+            // back off fast, rust is not consuming what we produce
+            keptUpCount = 0
+            allowedFps = max(MIN_CAPTURE_FPS, allowedFps * 3 / 4)
+        } else if (allowedFps < targetFps) {
+            // recover slowly, one step per second of frames without stale reports
+            keptUpCount++
+            if (keptUpCount >= allowedFps) {
+                keptUpCount = 0
+                allowedFps++
+            }
+        }
+    }
+}
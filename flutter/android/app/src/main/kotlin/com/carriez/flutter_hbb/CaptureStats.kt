@@ -0,0 +1,132 @@
+package com.carriez.flutter_hbb
+
+import android.util.Log
+import org.json.JSONArray
+import org.json.JSONObject
+import java.util.concurrent.atomic.AtomicLong
+import java.util.concurrent.atomic.AtomicLongArray
+import kotlin.math.max
+
+// Upper bounds of the latency buckets in ms, the last bucket has no bound.
+private val LATENCY_BUCKETS_MS = longArrayOf(1, 2, 4, 8, 16, 33, 66, 133, 266)
+
+/**
+ * Counters of the capture path, read by rust with `rustGetByName("capture_stats")`.
+ *
+ * Recording only updates atomics, it does not allocate and can be called on the capture thread
+ * for every frame. The values accumulate from [reset], which is called when the video starts.
+ * The time to first frame is measured from [markStart], when a connection asks for the capture.
+ */
+class CaptureStats {
+    private val logTag = "LOG_CAPTURE_STATS"
+    private val produced = AtomicLong(0) // images of the virtual display, or of the scaler
+    private val dropped = AtomicLong(0) // skipped to get the latest image
+    private val paced = AtomicLong(0) // skipped by the frame-rate governor
+    private val blank = AtomicLong(0) // black or screen off, skipped after the first one
+    private val forwarded = AtomicLong(0) // handed to rust
+    private val timeout = AtomicLong(0) // not taken by rust before the `FrameRaw` timeout
+    private val latencyCounts = AtomicLongArray(LATENCY_BUCKETS_MS.size + 1)
+    private val latencySumUs = AtomicLong(0)
+    private val latencyMaxUs = AtomicLong(0)
+    private val startNs = AtomicLong(0)
+    private val firstFrameUs = AtomicLong(-1)
+
+    fun reset() {
+        produced.set(0)
+        dropped.set(0)
+        paced.set(0)
+        blank.set(0)
+        forwarded.set(0)
+        timeout.set(0)
+        for (i in 0 until latencyCounts.length()) {
+            latencyCounts.set(i, 0)
+        }
+        latencySumUs.set(0)
+        latencyMaxUs.set(0)
+    }
+
+    fun markStart() {
+        firstFrameUs.set(-1)
+        startNs.set(System.nanoTime())
+    }
+
+    /** A frame reached rust, raw or encoded, only the first one after [markStart] is recorded. */
+    fun onFrameOut() {
+        val start = startNs.get()
+        if (start == 0L || firstFrameUs.get() >= 0) {
+            return
+        }
+        val us = (System.nanoTime() - start) / 1000
+        if (firstFrameUs.compareAndSet(-1, us)) {
+            Log.d(logTag, "time to first frame: ${us / 1000} ms")
+        }
+    }
+
+    fun onProduced() {
+        produced.incrementAndGet()
+    }
+
+    fun onDropped() {
+        dropped.incrementAndGet()
+    }
+
+    fun onPaced() {
+        paced.incrementAndGet()
+    }
+
+    fun onBlank() {
+        blank.incrementAndGet()
+    }
+
+    /**
+     * [timestampNs] is the image timestamp, the latency is the time from the image being
+     * available to the frame being in rust. [flags] is the value returned by `VideoFrameRing.publish`.
+     */
+    fun onForwarded(timestampNs: Long, flags: Long) {
+        forwarded.incrementAndGet()
+        onFrameOut()
+        if ((flags and VIDEO_FRAME_FLAG_TIMEOUT) != 0L) {
+            timeout.incrementAndGet()
+        }
+        val us = ((System.nanoTime() - timestampNs) / 1000).coerceAtLeast(0)
+        val ms = us / 1000
+        var i = 0
+        while (i < LATENCY_BUCKETS_MS.size && ms >= LATENCY_BUCKETS_MS[i]) {
+            i++
+        }
+        latencyCounts.incrementAndGet(i)
+        latencySumUs.addAndGet(us)
+        latencyMaxUs.accumulateAndGet(us, ::max)
+    }
+
+    /**
+     * [ringDepth] is the number of images held for rust, [encoderDepth] the number of
+     * output buffers of the surface encoder not drained yet.
+     */
+    fun toJson(ringDepth: Int, encoderDepth: Int): JSONObject {
+        val buckets = JSONArray()
+        LATENCY_BUCKETS_MS.forEach { buckets.put(it) }
+        val counts = JSONArray()
+        for (i in 0 until latencyCounts.length()) {
+            counts.put(latencyCounts.get(i))
+        }
+        val n = forwarded.get()
+        return JSONObject().apply {
+            put("produced", produced.get())
+            put("dropped", dropped.get())
+            put("paced", paced.get())
+            put("blank", blank.get())
+            put("forwarded", n)
+            put("timeout", timeout.get())
+            put("latency", JSONObject().apply {
+                put("buckets_ms", buckets)
+                put("counts", counts)
+                put("avg_us", if (n > 0) latencySumUs.get() / n else 0)
+                put("max_us", latencyMaxUs.get())
+            })
+            put("ring_depth", ringDepth)
+            put("encoder_depth", encoderDepth)
+            put("first_frame_us", firstFrameUs.get())
+        }
+    }
+}
@@ -0,0 +1,414 @@
+package com.carriez.flutter_hbb
+
+import android.graphics.SurfaceTexture
+import android.opengl.EGL14
+import android.opengl.EGLConfig
+import android.opengl.EGLContext
+import android.opengl.EGLDisplay
+import android.opengl.EGLExt
+import android.opengl.EGLSurface
+import android.opengl.GLES11Ext
+import android.opengl.GLES20
+import android.os.Looper
+import android.util.Log
+import android.view.Surface
+import java.nio.ByteBuffer
+import java.nio.ByteOrder
+import java.nio.FloatBuffer
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.TimeUnit
+
+// https://www.khronos.org/registry/EGL/extensions/ANDROID/EGL_ANDROID_recordable.txt
+private const val EGL_RECORDABLE_ANDROID = 0x3142
+
+private const val VERTEX_SHADER = """
+uniform mat4 uTexMatrix;
+attribute vec4 aPosition;
+attribute vec4 aTexCoord;
+varying vec2 vTexCoord;
+void main() {
+    gl_Position = aPosition;
+    vTexCoord = (uTexMatrix * aTexCoord).xy;
+}
+"""
+
+private const val FRAGMENT_SHADER = """
+#extension GL_OES_EGL_image_external : require
+precision mediump float;
+varying vec2 vTexCoord;
+uniform samplerExternalOES sTexture;
+void main() {
+    gl_FragColor = texture2D(sTexture, vTexCoord);
+}
+"""
+
+private const val I420_VERTEX_SHADER = """
+attribute vec4 aPosition;
+void main() {
+    gl_Position = aPosition;
+}
+"""
+
+// Writes the packed I420 layout of `i420PackedWidth`, BT.601 limited range as libyuv.
+// Row 0 of the image reader is the top of the surface, gl_FragCoord starts at the bottom.
+private const val I420_FRAGMENT_SHADER = """
+#extension GL_OES_EGL_image_external : require
+precision highp float;
+uniform samplerExternalOES sTexture;
+uniform mat4 uTexMatrix;
+uniform vec2 uSize;
+uniform float uPackedHeight;
+uniform float uChromaWidth;
+
+// p is in pixels of the output image, from the top left
+vec3 rgbAt(vec2 p) {
+    vec2 st = vec2(p.x / uSize.x, 1.0 - p.y / uSize.y);
+    return texture2D(sTexture, (uTexMatrix * vec4(st, 0.0, 1.0)).xy).rgb;
+}
+
+void main() {
+    float col = floor(gl_FragCoord.x);
+    float row = floor(uPackedHeight - gl_FragCoord.y);
+    if (row < uSize.y) {
+        vec3 coef = vec3(0.257, 0.504, 0.098);
+        float x = col * 4.0 + 0.5;
+        float y = row + 0.5;
+        gl_FragColor = vec4(
+            dot(rgbAt(vec2(x, y)), coef),
+            dot(rgbAt(vec2(x + 1.0, y)), coef),
+            dot(rgbAt(vec2(x + 2.0, y)), coef),
+            dot(rgbAt(vec2(x + 3.0, y)), coef)) + 0.0625;
+    } else {
+        bool isV = col >= uChromaWidth;
+        vec3 coef = isV ? vec3(0.439, -0.368, -0.071) : vec3(-0.148, -0.291, 0.439);
+        // sampled at the center of each 2x2 block
+        float x = (isV ? col - uChromaWidth : col) * 8.0 + 1.0;
+        float y = (row - uSize.y) * 2.0 + 1.0;
+        gl_FragColor = vec4(
+            dot(rgbAt(vec2(x, y)), coef),
+            dot(rgbAt(vec2(x + 2.0, y)), coef),
+            dot(rgbAt(vec2(x + 4.0, y)), coef),
+            dot(rgbAt(vec2(x + 6.0, y)), coef)) + 0.5;
+    }
+}
+"""
+
+/**
+ * Size of the RGBA image an I420 frame of `width` x `height` is packed into, 4 samples per pixel.
+ *
+ * The first `height` rows are the Y plane. Each following row holds a U row in its first half
+ * and the V row in its second half, so the three planes share the row stride of the image.
+ * Must match `FrameFormat::I420` in libs/scrap/src/android/ffi.rs
+ */
+fun i420PackedWidth(width: Int) = (width + 7) / 8 * 2
+
+fun i420PackedHeight(height: Int) = height + (height + 1) / 2
+
+// full screen quad, triangle strip: x, y, s, t
+private val QUAD = floatArrayOf(
+    -1f, -1f, 0f, 0f,
+    1f, -1f, 1f, 0f,
+    -1f, 1f, 0f, 1f,
+    1f, 1f, 1f, 1f,
+)
+
+/**
+ * Scales the virtual display on the GPU.
+ *
+ * The virtual display renders at the real screen size into [inputSurface],
+ * every frame is drawn into the output surface (image reader or encoder) at the output size.
+ * With `i420`, the frame is converted to I420 and drawn packed into an RGBA image reader
+ * of [i420PackedWidth] x [i420PackedHeight], so the CPU never converts it.
+ * The output can be replaced with [setOutput] and the input resized with [setInputSize]
+ * while capturing, so the capture size changes without recreating the virtual display.
+ *
+ * All GL calls run on the looper of [thread].
+ */
+class GlScaler(private val thread: PipelineThread) : SurfaceTexture.OnFrameAvailableListener {
+    private val logTag = "LOG_GL_SCALER"
+
+    private var eglDisplay: EGLDisplay = EGL14.EGL_NO_DISPLAY
+    private var eglContext: EGLContext = EGL14.EGL_NO_CONTEXT
+    private var eglConfig: EGLConfig? = null
+    private var eglSurface: EGLSurface = EGL14.EGL_NO_SURFACE
+
+    private var program = 0
+    private var positionLoc = 0
+    private var texCoordLoc = 0
+    private var texMatrixLoc = 0
+    private var i420Program = 0
+    private var i420PositionLoc = 0
+    private var i420TexMatrixLoc = 0
+    private var i420SizeLoc = 0
+    private var i420PackedHeightLoc = 0
+    private var i420ChromaWidthLoc = 0
+    private var textureId = 0
+    private val texMatrix = FloatArray(16)
+    private val quad: FloatBuffer = ByteBuffer.allocateDirect(QUAD.size * 4)
+        .order(ByteOrder.nativeOrder()).asFloatBuffer().apply {
+            put(QUAD)
+            position(0)
+        }
+
+    private var surfaceTexture: SurfaceTexture? = null
+    private var outWidth = 0
+    private var outHeight = 0
+    private var i420 = false
+
+    var inputSurface: Surface? = null
+        private set
+
+    /**
+     * [inWidth] x [inHeight] is the size of the virtual display,
+     * [width] x [height] is the size of the frame, not of the packed I420 image.
+     */
+    fun start(inWidth: Int, inHeight: Int, output: Surface, width: Int, height: Int, i420: Boolean = false): Boolean {
+        return runBlocking {
+            try {
+                initEgl()
+                if (!setOutputLocked(output, width, height, i420)) {
+                    throw RuntimeException("eglCreateWindowSurface fail")
+                }
+                initGl()
+                if (i420 && i420Program == 0) {
+                    throw RuntimeException("i420 not supported")
+                }
+                surfaceTexture = SurfaceTexture(textureId).apply {
+                    setDefaultBufferSize(inWidth, inHeight)
+                    setOnFrameAvailableListener(this@GlScaler, thread.handler)
+                }
+                inputSurface = Surface(surfaceTexture)
+                Log.d(logTag, "start ${inWidth}x$inHeight -> ${width}x$height, i420: $i420")
+                true
+            } catch (e: Exception) {
+                Log.e(logTag, "start fail: $e")
+                releaseLocked()
+                false
+            }
+        } ?: false
+    }
+
+    /** The previous output can be released once this returns. */
+    fun setOutput(output: Surface, width: Int, height: Int, i420: Boolean = false): Boolean {
+        return runBlocking {
+            Log.d(logTag, "set output ${width}x$height, i420: $i420")
+            !(i420 && i420Program == 0) && setOutputLocked(output, width, height, i420)
+        } ?: false
+    }
+
+    /** The virtual display is resized to [inWidth] x [inHeight], e.g. on rotation. */
+    fun setInputSize(inWidth: Int, inHeight: Int): Boolean {
+        return runBlocking {
+            Log.d(logTag, "set input ${inWidth}x$inHeight")
+            surfaceTexture?.setDefaultBufferSize(inWidth, inHeight) != null
+        } ?: false
+    }
+
+    /** Call it after the virtual display no longer renders into [inputSurface]. */
+    fun release() {
+        runBlocking { releaseLocked() }
+    }
+
+    override fun onFrameAvailable(st: SurfaceTexture) {
+        if (surfaceTexture !== st) {
+            return
+        }
+        try {
+            // the frame must be consumed even if it is not drawn
+            st.updateTexImage()
+            if (eglSurface == EGL14.EGL_NO_SURFACE) {
+                return
+            }
+            st.getTransformMatrix(texMatrix)
+            GLES20.glActiveTexture(GLES20.GL_TEXTURE0)
+            GLES20.glBindTexture(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, textureId)
+            quad.position(0)
+            if (i420) {
+                GLES20.glViewport(0, 0, i420PackedWidth(outWidth), i420PackedHeight(outHeight))
+                GLES20.glUseProgram(i420Program)
+                GLES20.glVertexAttribPointer(i420PositionLoc, 2, GLES20.GL_FLOAT, false, 16, quad)
+                GLES20.glEnableVertexAttribArray(i420PositionLoc)
+                GLES20.glUniformMatrix4fv(i420TexMatrixLoc, 1, false, texMatrix, 0)
+                GLES20.glUniform2f(i420SizeLoc, outWidth.toFloat(), outHeight.toFloat())
+                GLES20.glUniform1f(i420PackedHeightLoc, i420PackedHeight(outHeight).toFloat())
+                GLES20.glUniform1f(i420ChromaWidthLoc, (i420PackedWidth(outWidth) / 2).toFloat())
+            } else {
+                GLES20.glViewport(0, 0, outWidth, outHeight)
+                GLES20.glUseProgram(program)
+                GLES20.glVertexAttribPointer(positionLoc, 2, GLES20.GL_FLOAT, false, 16, quad)
+                GLES20.glEnableVertexAttribArray(positionLoc)
+                quad.position(2)
+                GLES20.glVertexAttribPointer(texCoordLoc, 2, GLES20.GL_FLOAT, false, 16, quad)
+                GLES20.glEnableVertexAttribArray(texCoordLoc)
+                GLES20.glUniformMatrix4fv(texMatrixLoc, 1, false, texMatrix, 0)
+            }
+            GLES20.glDrawArrays(GLES20.GL_TRIANGLE_STRIP, 0, 4)
+            // keep the timestamp of the virtual display frame, the capture governor relies on it
+            EGLExt.eglPresentationTimeANDROID(eglDisplay, eglSurface, st.timestamp)
+            EGL14.eglSwapBuffers(eglDisplay, eglSurface)
+        } catch (e: Exception) {
+            Log.e(logTag, "draw fail: $e")
+        }
+    }
+
+    private fun initEgl() {
+        eglDisplay = EGL14.eglGetDisplay(EGL14.EGL_DEFAULT_DISPLAY)
+        val version = IntArray(2)
+        if (!EGL14.eglInitialize(eglDisplay, version, 0, version, 1)) {
+            throw RuntimeException("eglInitialize fail")
+        }
+        val attribs = intArrayOf(
+            EGL14.EGL_RED_SIZE, 8,
+            EGL14.EGL_GREEN_SIZE, 8,
+            EGL14.EGL_BLUE_SIZE, 8,
+            EGL14.EGL_ALPHA_SIZE, 8,
+            EGL14.EGL_RENDERABLE_TYPE, EGL14.EGL_OPENGL_ES2_BIT,
+            EGL_RECORDABLE_ANDROID, 1, // the output may be an encoder input surface
+            EGL14.EGL_NONE
+        )
+        val configs = arrayOfNulls<EGLConfig>(1)
+        val num = IntArray(1)
+        if (!EGL14.eglChooseConfig(eglDisplay, attribs, 0, configs, 0, 1, num, 0) || num[0] == 0) {
+            throw RuntimeException("eglChooseConfig fail")
+        }
+        eglConfig = configs[0]
+        eglContext = EGL14.eglCreateContext(
+            eglDisplay, eglConfig, EGL14.EGL_NO_CONTEXT,
+            intArrayOf(EGL14.EGL_CONTEXT_CLIENT_VERSION, 2, EGL14.EGL_NONE), 0
+        )
+        if (eglContext == EGL14.EGL_NO_CONTEXT) {
+            throw RuntimeException("eglCreateContext fail")
+        }
+    }
+
+    private fun initGl() {
+        program = createProgram(VERTEX_SHADER, FRAGMENT_SHADER)
+        positionLoc = GLES20.glGetAttribLocation(program, "aPosition")
+        texCoordLoc = GLES20.glGetAttribLocation(program, "aTexCoord")
+        texMatrixLoc = GLES20.glGetUniformLocation(program, "uTexMatrix")
+        val textures = IntArray(1)
+        GLES20.glGenTextures(1, textures, 0)
+        textureId = textures[0]
+        GLES20.glBindTexture(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, textureId)
+        // bilinear, enough down to half size
+        GLES20.glTexParameteri(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, GLES20.GL_TEXTURE_MIN_FILTER, GLES20.GL_LINEAR)
+        GLES20.glTexParameteri(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, GLES20.GL_TEXTURE_MAG_FILTER, GLES20.GL_LINEAR)
+        GLES20.glTexParameteri(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, GLES20.GL_TEXTURE_WRAP_S, GLES20.GL_CLAMP_TO_EDGE)
+        GLES20.glTexParameteri(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, GLES20.GL_TEXTURE_WRAP_T, GLES20.GL_CLAMP_TO_EDGE)
+        try {
+            i420Program = createProgram(I420_VERTEX_SHADER, I420_FRAGMENT_SHADER)
+        } catch (e: RuntimeException) {
+            // highp is optional in fragment shaders of GLES 2, only RGBA output is available then
+            Log.w(logTag, "no i420 program: $e")
+            return
+        }
+        i420PositionLoc = GLES20.glGetAttribLocation(i420Program, "aPosition")
+        i420TexMatrixLoc = GLES20.glGetUniformLocation(i420Program, "uTexMatrix")
+        i420SizeLoc = GLES20.glGetUniformLocation(i420Program, "uSize")
+        i420PackedHeightLoc = GLES20.glGetUniformLocation(i420Program, "uPackedHeight")
+        i420ChromaWidthLoc = GLES20.glGetUniformLocation(i420Program, "uChromaWidth")
+    }
+
+    private fun setOutputLocked(output: Surface, width: Int, height: Int, i420: Boolean): Boolean {
+        if (eglDisplay == EGL14.EGL_NO_DISPLAY) {
+            return false
+        }
+        EGL14.eglMakeCurrent(eglDisplay, EGL14.EGL_NO_SURFACE, EGL14.EGL_NO_SURFACE, eglContext)
+        if (eglSurface != EGL14.EGL_NO_SURFACE) {
+            EGL14.eglDestroySurface(eglDisplay, eglSurface)
+            eglSurface = EGL14.EGL_NO_SURFACE
+        }
+        val s = EGL14.eglCreateWindowSurface(eglDisplay, eglConfig, output, intArrayOf(EGL14.EGL_NONE), 0)
+        if (s == null || s == EGL14.EGL_NO_SURFACE) {
+            Log.e(logTag, "eglCreateWindowSurface fail: ${EGL14.eglGetError()}")
+            return false
+        }
+        EGL14.eglMakeCurrent(eglDisplay, s, s, eglContext)
+        eglSurface = s
+        outWidth = width
+        outHeight = height
+        this.i420 = i420
+        return true
+    }
+
+    private fun releaseLocked() {
+        surfaceTexture?.setOnFrameAvailableListener(null)
+        surfaceTexture?.release()
+        surfaceTexture = null
+        inputSurface?.release()
+        inputSurface = null
+        if (eglDisplay != EGL14.EGL_NO_DISPLAY) {
+            EGL14.eglMakeCurrent(eglDisplay, EGL14.EGL_NO_SURFACE, EGL14.EGL_NO_SURFACE, EGL14.EGL_NO_CONTEXT)
+            if (program != 0) {
+                GLES20.glDeleteProgram(program)
+                program = 0
+            }
+            if (i420Program != 0) {
+                GLES20.glDeleteProgram(i420Program)
+                i420Program = 0
+            }
+            if (eglSurface != EGL14.EGL_NO_SURFACE) {
+                EGL14.eglDestroySurface(eglDisplay, eglSurface)
+            }
+            if (eglContext != EGL14.EGL_NO_CONTEXT) {
+                EGL14.eglDestroyContext(eglDisplay, eglContext)
+            }
+            EGL14.eglReleaseThread()
+            EGL14.eglTerminate(eglDisplay)
+        }
+        eglSurface = EGL14.EGL_NO_SURFACE
+        eglContext = EGL14.EGL_NO_CONTEXT
+        eglDisplay = EGL14.EGL_NO_DISPLAY
+        textureId = 0
+    }
+
+    private fun createProgram(vertex: String, fragment: String): Int {
+        val vs = loadShader(GLES20.GL_VERTEX_SHADER, vertex)
+        val fs = loadShader(GLES20.GL_FRAGMENT_SHADER, fragment)
+        val p = GLES20.glCreateProgram()
+        GLES20.glAttachShader(p, vs)
+        GLES20.glAttachShader(p, fs)
+        GLES20.glLinkProgram(p)
+        GLES20.glDeleteShader(vs)
+        GLES20.glDeleteShader(fs)
+        val status = IntArray(1)
+        GLES20.glGetProgramiv(p, GLES20.GL_LINK_STATUS, status, 0)
+        if (status[0] != GLES20.GL_TRUE) {
+            val log = GLES20.glGetProgramInfoLog(p)
+            GLES20.glDeleteProgram(p)
+            throw RuntimeException("link program fail: $log")
+        }
+        return p
+    }
+
+    private fun loadShader(type: Int, source: String): Int {
+        val shader = GLES20.glCreateShader(type)
+        GLES20.glShaderSource(shader, source)
+        GLES20.glCompileShader(shader)
+        val status = IntArray(1)
+        GLES20.glGetShaderiv(shader, GLES20.GL_COMPILE_STATUS, status, 0)
+        if (status[0] != GLES20.GL_TRUE) {
+            val log = GLES20.glGetShaderInfoLog(shader)
+            GLES20.glDeleteShader(shader)
+            throw RuntimeException("compile shader fail: $log")
+        }
+        return shader
+    }
+
+    // Run on the GL thread and wait, null on timeout.
+    private fun <T> runBlocking(block: () -> T): T? {
+        if (Looper.myLooper() == thread.handler.looper) {
+            return block()
+        }
+        var result: T? = null
+        val latch = CountDownLatch(1)
+        thread.handler.post {
+            result = block()
+            latch.countDown()
+        }
+        if (!latch.await(1, TimeUnit.SECONDS)) {
+            Log.e(logTag, "GL thread timeout")
+        }
+        return result
+    }
+}
@@ -18,8 +18,10 @@ import android.widget.EditText
 import android.view.accessibility.AccessibilityEvent
 import android.view.ViewGroup.LayoutParams
 import android.view.accessibility.AccessibilityNodeInfo
+import android.view.accessibility.AccessibilityWindowInfo
 import android.view.KeyEvent as KeyEventAndroid
 import android.view.ViewConfiguration
+import android.graphics.Point
 import android.graphics.Rect
 import android.media.AudioManager
 import android.accessibilityservice.AccessibilityServiceInfo
@@ -86,11 +88,41 @@ class InputService : AccessibilityService() {
 
     private var fakeEditTextForTextStateCalculation: EditText? = null
 
+    private var contentEvents = false // see `setContentEvents`
+
     private var lastX = 0
     private var lastY = 0
 
     private val volumeController: VolumeController by lazy { VolumeController(applicationContext.getSystemService(AUDIO_SERVICE) as AudioManager) }
 
+    /**
+     * Screen position of the application window of [width] x [height], where a single-app
+     * projection is shown. The focused window is not used, after the picker it is often
+     * RustDesk itself or a dialog. Null if no other app or several have a window of that size.
+     */
+    fun sharedWindowOrigin(width: Int, height: Int): Point? {
+        val bounds = Rect()
+        val matches = windows.filter {
+            it.type == AccessibilityWindowInfo.TYPE_APPLICATION && run {
+                it.getBoundsInScreen(bounds)
+                bounds.width() == width && bounds.height() == height
+            }
+        }.filter {
+            // only the few windows of the right size have their root fetched
+            val root = it.root ?: return@filter true
+            val own = root.packageName == packageName
+            if (Build.VERSION.SDK_INT < 33) {
+                root.recycle()
+            }
+            !own
+        }
+        if (matches.size != 1) {
+            return null
+        }
+        matches[0].getBoundsInScreen(bounds)
+        return Point(bounds.left, bounds.top)
+    }
+
     @RequiresApi(Build.VERSION_CODES.N)
     fun onMouseInput(mask: Int, _x: Int, _y: Int) {
         val x = max(0, _x)
@@ -99,8 +131,8 @@ class InputService : AccessibilityService() {
         if (mask == 0 || mask == LEFT_MOVE) {
             val oldX = mouseX
             val oldY = mouseY
-            mouseX = x * SCREEN_INFO.scale
-            mouseY = y * SCREEN_INFO.scale
+            mouseX = SCREEN_INFO.toScreenX(x)
+            mouseY = SCREEN_INFO.toScreenY(y)
             if (isWaitingLongPress) {
                 val delta = abs(oldX - mouseX) + abs(oldY - mouseY)
                 Log.d(logTag,"delta:$delta")
@@ -215,21 +247,21 @@ class InputService : AccessibilityService() {
     fun onTouchInput(mask: Int, _x: Int, _y: Int) {
         when (mask) {
             TOUCH_PAN_UPDATE -> {
-                mouseX -= _x * SCREEN_INFO.scale
-                mouseY -= _y * SCREEN_INFO.scale
+                mouseX -= SCREEN_INFO.scaleX(_x)
+                mouseY -= SCREEN_INFO.scaleY(_y)
                 mouseX = max(0, mouseX);
                 mouseY = max(0, mouseY);
                 continueGesture(mouseX, mouseY)
             }
             TOUCH_PAN_START -> {
-                mouseX = max(0, _x) * SCREEN_INFO.scale
-                mouseY = max(0, _y) * SCREEN_INFO.scale
+                mouseX = SCREEN_INFO.toScreenX(max(0, _x))
+                mouseY = SCREEN_INFO.toScreenY(max(0, _y))
                 startGesture(mouseX, mouseY)
             }
             TOUCH_PAN_END -> {
                 endGesture(mouseX, mouseY)
-                mouseX = max(0, _x) * SCREEN_INFO.scale
-                mouseY = max(0, _y) * SCREEN_INFO.scale
+                mouseX = SCREEN_INFO.toScreenX(max(0, _x))
+                mouseY = SCREEN_INFO.toScreenY(max(0, _y))
             }
             else -> {}
         }
@@ -711,6 +743,40 @@ class InputService : AccessibilityService() {
 
 
     override fun onAccessibilityEvent(event: AccessibilityEvent) {
+        // wakes a capture suspended for an idle screen
+        if (MainService.isStart) {
+            MainService.onScreenActivity()
+        }
+        if (event.eventType == AccessibilityEvent.TYPE_WINDOWS_CHANGED) {
+            MainService.onWindowsChanged()
+        }
+    }
+
+    /**
+     * Subscribe to content changes and scrolls, which come for every frame of an animation.
+     * Only enabled while a capture with a quiet period needs them to wake up.
+     */
+    @Synchronized
+    fun setContentEvents(enable: Boolean) {
+        if (contentEvents == enable) {
+            return
+        }
+        contentEvents = enable
+        serviceInfo?.let {
+            it.eventTypes = eventTypes()
+            setServiceInfo(it)
+        }
+    }
+
+    private fun eventTypes(): Int {
+        // same as accessibility_service_config.xml, `setServiceInfo` replaces it
+        var types = AccessibilityEvent.TYPE_WINDOWS_CHANGED or
+                AccessibilityEvent.TYPE_WINDOW_STATE_CHANGED
+        if (contentEvents) {
+            types = types or AccessibilityEvent.TYPE_WINDOW_CONTENT_CHANGED or
+                    AccessibilityEvent.TYPE_VIEW_SCROLLED
+        }
+        return types
     }
 
     override fun onServiceConnected() {
@@ -722,6 +788,9 @@ class InputService : AccessibilityService() {
         } else {
             info.flags = FLAG_RETRIEVE_INTERACTIVE_WINDOWS
         }
+        contentEvents = MainService.needsContentEvents
+        info.eventTypes = eventTypes()
+        info.notificationTimeout = 50
         setServiceInfo(info)
         fakeEditTextForTextStateCalculation = EditText(this)
         // Size here doesn't matter, we won't show this view.
@@ -33,6 +33,8 @@ import io.flutter.embedding.android.FlutterActivity
 import io.flutter.embedding.engine.FlutterEngine
 import io.flutter.plugin.common.MethodChannel
 import kotlin.concurrent.thread
+import kotlin.math.max
+import kotlin.math.min
 
 
 class MainActivity : FlutterActivity() {
@@ -62,7 +64,9 @@ class MainActivity : FlutterActivity() {
             channelTag
         )
         initFlutterChannel(flutterMethodChannel!!)
-        thread { setCodecInfo() }
+        if (!loadCodecInfoCache()) {
+            thread { setCodecInfo() }
+        }
     }
 
     override fun onResume() {
@@ -274,7 +278,33 @@ class MainActivity : FlutterActivity() {
         }
     }
 
+    // The probe depends on the system image, the app version and the screen size.
+    private fun codecInfoFingerprint(): String {
+        val wh = getScreenSize(getSystemService(Context.WINDOW_SERVICE) as WindowManager)
+        val updateTime = try {
+            packageManager.getPackageInfo(packageName, 0).lastUpdateTime
+        } catch (e: Exception) {
+            0L
+        }
+        // either orientation, the probe accepts both
+        val (w, h) = max(wh.first, wh.second) to min(wh.first, wh.second)
+        return "${Build.FINGERPRINT}|$updateTime|${w}x$h"
+    }
+
+    // Probing every codec takes hundreds of ms on low-end devices, reuse the last result if it still applies.
+    private fun loadCodecInfoCache(): Boolean {
+        val prefs = getSharedPreferences(KEY_SHARED_PREFERENCES, MODE_PRIVATE)
+        if (prefs.getString(KEY_CODEC_INFO_FINGERPRINT, null) != codecInfoFingerprint()) {
+            return false
+        }
+        val info = prefs.getString(KEY_CODEC_INFO, null) ?: return false
+        FFI.setCodecInfo(info)
+        Log.d(logTag, "codec info loaded from cache")
+        return true
+    }
+
     private fun setCodecInfo() {
+        val fingerprint = codecInfoFingerprint()
         val codecList = MediaCodecList(MediaCodecList.REGULAR_CODECS)
         val codecs = codecList.codecInfos
         val codecArray = JSONArray()
@@ -308,7 +338,8 @@ class MainActivity : FlutterActivity() {
             codecObject.put("hw", hw)
             var mime_type = ""
             codec.supportedTypes.forEach { type ->
-                if (listOf("video/avc", "video/hevc").contains(type)) { // "video/x-vnd.on2.vp8", "video/x-vnd.on2.vp9", "video/av01"
+                // vp9 is only used by the surface encoder
+                if (listOf("video/avc", "video/hevc", "video/x-vnd.on2.vp9").contains(type)) { // "video/x-vnd.on2.vp8", "video/av01"
                     mime_type = type;
                 }
             }
@@ -338,6 +369,8 @@ class MainActivity : FlutterActivity() {
                     if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.R) {
                         codecObject.put("low_latency", caps.isFeatureSupported(MediaCodecInfo.CodecCapabilities.FEATURE_LowLatency))
                     }
+                } else {
+                    codecObject.put("intra_refresh", caps.isFeatureSupported(MediaCodecInfo.CodecCapabilities.FEATURE_IntraRefresh))
                 }
                 if (!codec.isEncoder) {
                     return@forEach
@@ -350,7 +383,12 @@ class MainActivity : FlutterActivity() {
         result.put("w", w)
         result.put("h", h)
         result.put("codecs", codecArray)
-        FFI.setCodecInfo(result.toString())
+        val info = result.toString()
+        FFI.setCodecInfo(info)
+        getSharedPreferences(KEY_SHARED_PREFERENCES, MODE_PRIVATE).edit()
+            .putString(KEY_CODEC_INFO, info)
+            .putString(KEY_CODEC_INFO_FINGERPRINT, fingerprint)
+            .apply()
     }
 
     private fun onVoiceCallStarted() {
@@ -14,13 +14,17 @@ import android.annotation.SuppressLint
 import android.app.*
 import android.app.PendingIntent.FLAG_IMMUTABLE
 import android.app.PendingIntent.FLAG_UPDATE_CURRENT
+import android.content.BroadcastReceiver
 import android.content.Context
 import android.content.Intent
+import android.content.IntentFilter
 import android.content.pm.PackageManager
 import android.content.res.Configuration
 import android.content.res.Configuration.ORIENTATION_LANDSCAPE
 import android.graphics.Color
 import android.graphics.PixelFormat
+import android.hardware.HardwareBuffer
+import android.hardware.display.DisplayManager
 import android.hardware.display.DisplayManager.VIRTUAL_DISPLAY_FLAG_AUTO_MIRROR
 import android.hardware.display.VirtualDisplay
 import android.media.*
@@ -29,8 +33,8 @@ import android.media.projection.MediaProjectionManager
 import android.os.*
 import android.util.DisplayMetrics
 import android.util.Log
+import android.view.Display
 import android.view.Surface
-import android.view.Surface.FRAME_RATE_COMPATIBILITY_DEFAULT
 import android.view.WindowManager
 import androidx.annotation.Keep
 import androidx.annotation.RequiresApi
@@ -38,27 +42,44 @@ import androidx.core.app.ActivityCompat
 import androidx.core.app.NotificationCompat
 import androidx.core.content.ContextCompat
 import io.flutter.embedding.android.FlutterActivity
-import java.util.concurrent.Executors
 import kotlin.concurrent.thread
+import org.json.JSONArray
 import org.json.JSONException
 import org.json.JSONObject
 import java.nio.ByteBuffer
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.TimeUnit
 import kotlin.math.max
 import kotlin.math.min
+import kotlin.math.roundToInt
 
 const val DEFAULT_NOTIFY_TITLE = "RustDesk"
 const val DEFAULT_NOTIFY_TEXT = "Service is running"
 const val DEFAULT_NOTIFY_ID = 1
 const val NOTIFY_ID_OFFSET = 100
 
-const val MIME_TYPE = MediaFormat.MIMETYPE_VIDEO_VP9
-
 // video const
 
 const val MAX_SCREEN_SIZE = 1200
-
-const val VIDEO_KEY_BIT_RATE = 1024_000
-const val VIDEO_KEY_FRAME_RATE = 30
+// Longer than `IDLE_THRESHOLD` in libs/scrap/src/android/ring.rs, so rust can wake a suspended capture.
+const val MIN_CAPTURE_QUIET_PERIOD_MS = 5000L
+// Wait of "snapshot" for the virtual display to render a frame while the capture is stopped.
+const val SNAPSHOT_TIMEOUT_MS = 500L
+// Black frames in a row before the capture is taken as blank without the screen being off
+// or the shared app hidden, so a dark UI passing `BlankFrameDetector` once is not slowed down.
+const val BLANK_CONFIRM_FRAMES = 3
+
+// One step of the quality ladder, the scale is the captured size / real screen size. Applied
+// on top of what rust sets with "capture_max_size", "set_capture_fps" and "surface_encoder_bitrate".
+private class QualityLevel(val scale: Float, val maxFps: Int, val bitratePercent: Int)
+
+// Selected by rust with "quality_level", must match `QUALITY_LEVELS` in src/server/video_qos.rs
+private val QUALITY_LADDER = arrayOf(
+    QualityLevel(1f, MAX_CAPTURE_FPS, 100),
+    QualityLevel(0.75f, 30, 85),
+    QualityLevel(0.5f, 20, 70),
+    QualityLevel(0.35f, 12, 50),
+)
 
 class MainService : Service() {
 
@@ -106,6 +127,24 @@ class MainService : Service() {
             "is_start" -> {
                 isStart.toString()
             }
+            "surface_encoder" -> {
+                surfaceEncoder?.name ?: ""
+            }
+            "displays" -> {
+                displaysJson().toString()
+            }
+            "snapshot" -> {
+                snapshot()?.toJson(snapshotFormat, snapshotQuality)?.toString() ?: ""
+            }
+            "capture_stats" -> {
+                captureStats.toJson(captureThread.currentDepth, encoderThread.currentDepth).toString()
+            }
+            "pipeline_stats" -> {
+                JSONObject().apply {
+                    put("capture", captureThread.stats())
+                    put("encoder", encoderThread.stats())
+                }.toString()
+            }
             else -> ""
         }
     }
@@ -175,13 +214,92 @@ class MainService : Service() {
                 Log.d(logTag, "from rust:stop_capture")
                 stopCapture()
             }
+            "start_surface_encoder" -> {
+                try {
+                    startSurfaceEncoder(JSONObject(arg1))
+                } catch (e: JSONException) {
+                    e.printStackTrace()
+                }
+            }
+            "stop_surface_encoder" -> {
+                stopSurfaceEncoder()
+            }
+            "surface_encoder_sync_frame" -> {
+                surfaceEncoder?.requestSyncFrame()
+            }
+            "start_recording" -> {
+                try {
+                    startRecording(JSONObject(arg1))
+                } catch (e: JSONException) {
+                    e.printStackTrace()
+                }
+            }
+            "stop_recording" -> {
+                stopRecording()
+            }
+            "surface_encoder_bitrate" -> {
+                arg1.toIntOrNull()?.let {
+                    surfaceEncoderKbps = it
+                    surfaceEncoder?.setBitrate(ladderBitrate(it))
+                }
+            }
+            "set_capture_fps" -> {
+                arg1.toIntOrNull()?.let {
+                    captureFps = it
+                    captureGovernor.setTargetFps(min(it, QUALITY_LADDER[qualityLevel].maxFps))
+                }
+            }
+            "quality_level" -> {
+                arg1.toIntOrNull()?.let {
+                    val level = it.coerceIn(0, QUALITY_LADDER.size - 1)
+                    // Not on the calling thread, it is the video service that holds the frame
+                    // `setFrameRawEnable("video", false)` waits for when the capture is resized.
+                    serviceHandler?.post { setQualityLevel(level) }
+                }
+            }
+            "snapshot_config" -> {
+                try {
+                    val config = JSONObject(arg1)
+                    snapshotFormat = config.optString("format", snapshotFormat)
+                    snapshotQuality = config.optInt("quality", snapshotQuality)
+                    snapshotMaxSize = config.optInt("max_size", snapshotMaxSize)
+                } catch (e: JSONException) {
+                    e.printStackTrace()
+                }
+            }
+            "capture_quiet_period" -> {
+                arg1.toLongOrNull()?.let {
+                    quietPeriodMs = if (it > 0) max(it * 1000, MIN_CAPTURE_QUIET_PERIOD_MS) else 0
+                    updateContentEvents()
+                    captureGovernor.resume()
+                    scheduleCaptureSuspend()
+                }
+            }
+            // The geometry is changed on the service thread, this one returns at once. It may be
+            // a connection of rust, which must not wait for the video service to give its frames back.
             "half_scale" -> {
                 val halfScale = arg1.toBoolean()
-                if (isHalfScale != halfScale) {
-                    isHalfScale = halfScale
-                    updateScreenInfo(resources.configuration.orientation)
+                serviceHandler?.post {
+                    if (isHalfScale != halfScale) {
+                        isHalfScale = halfScale
+                        applyScreenInfo(resources.configuration.orientation)
+                    }
+                }
+            }
+            "capture_max_size" -> {
+                arg1.toIntOrNull()?.let {
+                    val size = it.coerceAtLeast(0)
+                    serviceHandler?.post {
+                        if (captureMaxSize != size) {
+                            captureMaxSize = size
+                            applyScreenInfo(resources.configuration.orientation)
+                        }
+                    }
                 }
-                
+            }
+            "capture_pixfmt" -> {
+                val i420 = arg1 == "i420"
+                serviceHandler?.post { setCaptureI420(i420) }
             }
             else -> {
             }
@@ -204,10 +322,30 @@ class MainService : Service() {
             get() = _isStart
         val isAudioStart: Boolean
             get() = _isAudioStart
+
+        @Volatile
+        private var ctx: MainService? = null
+
+        /** Called by [InputService] when a window or its content changes. */
+        fun onScreenActivity() {
+            ctx?.noteScreenActivity()
+        }
+
+        /** Called by [InputService] when windows are added, removed or moved, on the main thread. */
+        fun onWindowsChanged() {
+            ctx?.let {
+                if (it.singleAppProjection) {
+                    it.updateCaptureOrigin()
+                }
+            }
+        }
+
+        /** Whether [InputService] should report content changes, see [InputService.setContentEvents]. */
+        val needsContentEvents: Boolean
+            get() = ctx?.let { _isStart && it.quietPeriodMs > 0 } ?: false
     }
 
     private val logTag = "LOG_SERVICE"
-    private val useVP9 = false
     private val binder = LocalBinder()
 
     private var reuseVirtualDisplay = Build.VERSION.SDK_INT > 33
@@ -215,9 +353,24 @@ class MainService : Service() {
     // video
     private var mediaProjection: MediaProjection? = null
     private var surface: Surface? = null
-    private val sendVP9Thread = Executors.newSingleThreadExecutor()
-    private var videoEncoder: MediaCodec? = null
+    private var surfaceEncoder: SurfaceVideoEncoder? = null // set by rust, replaces the image reader
+    private var sessionRecorder: SessionRecorder? = null // records the output of `surfaceEncoder`, set by rust
     private var imageReader: ImageReader? = null
+    private var standbyReader: ImageReader? = null // for the rotated geometry, see `prepareStandbyReader`
+    private var standbyGeometry: Triple<Int, Int, Boolean>? = null // width, height, i420
+    // Frame delivery must not wait behind the housekeeping posted to `serviceHandler`.
+    private val captureThread = PipelineThread("Capture", Process.THREAD_PRIORITY_URGENT_DISPLAY)
+    private val encoderThread = PipelineThread("EncoderDrain", Process.THREAD_PRIORITY_DISPLAY)
+    // GL blocks when the image reader is full, it must not share the capture thread
+    private val scalerThread = PipelineThread("GlScaler", Process.THREAD_PRIORITY_URGENT_DISPLAY)
+    private var glScaler: GlScaler? = null
+    private val videoFrameRing = VideoFrameRing(captureThread)
+    private val vsyncClock = VsyncClock() // only touched on the capture thread
+    private val captureGovernor = CaptureFpsGovernor(vsyncClock).apply {
+        // no vsync wakeups while one frame a second is forwarded, pacing falls back to timestamps
+        onSlowChanged = { slow -> captureThread.handler.post { vsyncClock.setPaused(slow) } }
+    }
+    private val captureStats = CaptureStats()
     private var virtualDisplay: VirtualDisplay? = null
 
     // audio
@@ -232,12 +385,19 @@ class MainService : Service() {
         super.onCreate()
         Log.d(logTag,"MainService onCreate, sdk int:${Build.VERSION.SDK_INT} reuseVirtualDisplay:$reuseVirtualDisplay")
         FFI.init(this)
+        ctx = this
         HandlerThread("Service", Process.THREAD_PRIORITY_BACKGROUND).apply {
             start()
             serviceLooper = looper
             serviceHandler = Handler(looper)
         }
         updateScreenInfo(resources.configuration.orientation)
+        displayManager.registerDisplayListener(displayListener, Handler(Looper.getMainLooper()))
+        screenOff = !powerManager.isInteractive
+        registerReceiver(screenStateReceiver, IntentFilter().apply {
+            addAction(Intent.ACTION_SCREEN_ON)
+            addAction(Intent.ACTION_SCREEN_OFF)
+        })
         initNotification()
 
         // keep the config dir same with flutter
@@ -249,13 +409,155 @@ class MainService : Service() {
     }
 
     override fun onDestroy() {
+        ctx = null
+        displayManager.unregisterDisplayListener(displayListener)
+        unregisterReceiver(screenStateReceiver)
         checkMediaPermission()
         stopService(Intent(this, FloatingWindowService::class.java))
+        captureThread.quit()
+        encoderThread.quit()
+        scalerThread.quit()
         super.onDestroy()
     }
 
     private var isHalfScale: Boolean? = null;
+    private var captureMaxSize = 0 // long edge of the capture in pixels, 0 for no cap, set by rust
+    private var captureI420 = false // I420 converted on the GPU instead of RGBA, set by rust
+    private var captureFps = DEFAULT_CAPTURE_FPS // set by rust
+    private var surfaceEncoderKbps = 0 // set by rust
+    @Volatile
+    private var qualityLevel = 0 // index of QUALITY_LADDER, set by rust
+    @Volatile
+    private var quietPeriodMs = 0L // capture is suspended after it without screen activity, 0 never, set by rust
+    @Volatile
+    private var lastActivityMs = 0L
+    // "snapshot", set by rust with "snapshot_config"
+    @Volatile
+    private var snapshotFormat = "jpeg"
+    @Volatile
+    private var snapshotQuality = 80
+    @Volatile
+    private var snapshotMaxSize = 480
+    private var displayWidth = 0
+    private var displayHeight = 0
+    private var displayDpi = 0
+
+    private val displayManager: DisplayManager by lazy { getSystemService(Context.DISPLAY_SERVICE) as DisplayManager }
+
+    // HDMI boxes can change the mode of the default display without a configuration change.
+    private val displayListener = object : DisplayManager.DisplayListener {
+        override fun onDisplayAdded(displayId: Int) {
+            Log.d(logTag, "display added: $displayId")
+        }
+
+        override fun onDisplayRemoved(displayId: Int) {
+            Log.d(logTag, "display removed: $displayId")
+        }
+
+        override fun onDisplayChanged(displayId: Int) {
+            if (displayId == Display.DEFAULT_DISPLAY) {
+                updateScreenInfo(resources.configuration.orientation)
+                val rate = refreshRate
+                captureThread.handler.post { vsyncClock.setRefreshRate(rate) }
+            }
+        }
+    }
+
+    private val refreshRate: Float
+        get() = displayManager.getDisplay(Display.DEFAULT_DISPLAY)?.refreshRate ?: 60f
+
+    // The virtual display renders black while the screen is off, the capture only checks
+    // one frame per second until it is back on.
+    @Volatile
+    private var screenOff = false
+    private var blankDetections = 0 // black frames in a row without a screen signal, capture thread
+
+    private val screenStateReceiver = object : BroadcastReceiver() {
+        override fun onReceive(context: Context, intent: Intent) {
+            screenOff = intent.action == Intent.ACTION_SCREEN_OFF
+            Log.d(logTag, "screen off: $screenOff")
+            if (!screenOff) {
+                captureGovernor.setBlank(false)
+                noteScreenActivity()
+            }
+        }
+    }
+
+    // Single-app projection, API 34+. The size of the app, 0 while the whole display is captured.
+    private var singleAppProjection = false
+    private var capturedContentWidth = 0
+    private var capturedContentHeight = 0
+    @Volatile
+    private var contentHidden = false // the shared app is in the background, the frames are black
+
+    private val projectionCallback = object : MediaProjection.Callback() {
+        override fun onStop() {
+            Log.d(logTag, "media projection stopped")
+        }
+
+        // also called for a whole display, with its size
+        override fun onCapturedContentResize(width: Int, height: Int) {
+            Log.d(logTag, "captured content resized: ${width}x$height, single app: $singleAppProjection")
+            if (!singleAppProjection || (width == capturedContentWidth && height == capturedContentHeight)) {
+                return
+            }
+            capturedContentWidth = width
+            capturedContentHeight = height
+            updateCaptureOrigin()
+            updateScreenInfo(resources.configuration.orientation)
+        }
+
+        override fun onCapturedContentVisibilityChanged(isVisible: Boolean) {
+            Log.d(logTag, "captured content visible: $isVisible")
+            contentHidden = !isVisible
+            if (isVisible) {
+                captureGovernor.setBlank(false)
+                noteScreenActivity()
+            }
+        }
+    }
+
+    // The shared app can move without being resized, e.g. in split screen or a freeform window,
+    // so its window is looked up again on every window change. While it is not found for sure,
+    // the input is not offset, which is right for an app in full screen.
+    private fun updateCaptureOrigin() {
+        val origin = if (singleAppProjection && capturedContentWidth > 0 && capturedContentHeight > 0) {
+            InputService.ctx?.sharedWindowOrigin(capturedContentWidth, capturedContentHeight)
+        } else {
+            null
+        }
+        if (origin == null && singleAppProjection) {
+            Log.d(logTag, "shared window not found, input is not offset")
+        }
+        SCREEN_INFO.originX = origin?.x ?: 0
+        SCREEN_INFO.originY = origin?.y ?: 0
+    }
+
+    // A media projection can only mirror the default display, the others are listed as not capturable.
+    private fun displaysJson(): JSONArray {
+        val array = JSONArray()
+        displayManager.displays.forEach {
+            val mode = it.mode
+            array.put(JSONObject().apply {
+                put("id", it.displayId)
+                put("name", it.name)
+                put("width", mode.physicalWidth)
+                put("height", mode.physicalHeight)
+                put("refresh_rate", mode.refreshRate.toDouble())
+                put("capturable", it.displayId == Display.DEFAULT_DISPLAY)
+            })
+        }
+        return array
+    }
+
+    // Geometry is only changed on the service thread. Reconfiguring the video waits for rust
+    // to give its frames back, which must block neither the main thread nor rust's threads.
     private fun updateScreenInfo(orientation: Int) {
+        serviceHandler?.post { applyScreenInfo(orientation) }
+    }
+
+    @Synchronized
+    private fun applyScreenInfo(orientation: Int) {
         var w: Int
         var h: Int
         var dpi: Int
@@ -284,27 +586,48 @@ class MainService : Service() {
             w = min
             h = max
         }
-        Log.d(logTag,"updateScreenInfo:w:$w,h:$h")
-        var scale = 1
+        Log.d(logTag,"applyScreenInfo:w:$w,h:$h")
+        if (capturedContentWidth > 0 && capturedContentHeight > 0) {
+            // single-app projection, the virtual display takes the size of the app
+            w = capturedContentWidth
+            h = capturedContentHeight
+        } else {
+            SCREEN_INFO.originX = 0
+            SCREEN_INFO.originY = 0
+        }
         if (w != 0 && h != 0) {
+            var scale = QUALITY_LADDER[qualityLevel].scale
+            if (captureMaxSize > 0) {
+                scale = scale.coerceAtMost(captureMaxSize.toFloat() / max(w, h))
+            }
             if (isHalfScale == true && (w > MAX_SCREEN_SIZE || h > MAX_SCREEN_SIZE)) {
-                scale = 2
-                w /= scale
-                h /= scale
-                dpi /= scale
-            }
-            if (SCREEN_INFO.width != w) {
-                SCREEN_INFO.width = w
-                SCREEN_INFO.height = h
-                SCREEN_INFO.scale = scale
-                SCREEN_INFO.dpi = dpi
-                if (isStart) {
-                    stopCapture()
-                    FFI.refreshScreen()
-                    startCapture()
-                } else {
-                    FFI.refreshScreen()
+                scale = scale.coerceAtMost(0.5f)
+            }
+            var cw = w
+            var ch = h
+            if (scale < 1f) {
+                // even sizes, required by most encoders
+                cw = (w * scale).roundToInt() and 1.inv()
+                ch = (h * scale).roundToInt() and 1.inv()
+            }
+            if (SCREEN_INFO.width != cw || SCREEN_INFO.height != ch) {
+                val displayChanged = displayWidth != w || displayHeight != h || displayDpi != dpi
+                displayWidth = w
+                displayHeight = h
+                displayDpi = dpi
+                SCREEN_INFO.width = cw
+                SCREEN_INFO.height = ch
+                SCREEN_INFO.scale = (1f / scale).roundToInt().coerceAtLeast(1)
+                SCREEN_INFO.ratioX = w.toFloat() / cw
+                SCREEN_INFO.ratioY = h.toFloat() / ch
+                SCREEN_INFO.dpi = (dpi * scale).roundToInt()
+                // the media projection and the audio are kept, only the video is reconfigured
+                if (isStart && !reconfigureVideo(displayChanged)) {
+                    restartVideo()
+                } else if (!isStart) {
+                    warmUpVideo()
                 }
+                FFI.refreshScreen()
             }
 
         }
@@ -338,9 +661,13 @@ class MainService : Service() {
 
             intent.getParcelableExtra<Intent>(EXT_MEDIA_PROJECTION_RES_INTENT)?.let {
                 mediaProjection =
-                    mediaProjectionManager.getMediaProjection(Activity.RESULT_OK, it)
+                    mediaProjectionManager.getMediaProjection(Activity.RESULT_OK, it)?.apply {
+                        registerCallback(projectionCallback, Handler(Looper.getMainLooper()))
+                    }
+                singleAppProjection = intent.getBooleanExtra(EXT_SINGLE_APP_PROJECTION, false)
                 checkMediaPermission()
                 _isReady = true
+                warmUpVideo()
             } ?: let {
                 Log.d(logTag, "getParcelableExtra intent null, invoke requestMediaProjection")
                 requestMediaProjection()
@@ -362,36 +689,170 @@ class MainService : Service() {
         startActivity(intent)
     }
 
+    // With `i420`, only `GlScaler` can render into the image reader.
+    private fun createSurface(i420: Boolean = false): Surface? {
+        imageReader = takeStandbyReader(SCREEN_INFO.width, SCREEN_INFO.height, i420)
+            ?: createImageReader(SCREEN_INFO.width, SCREEN_INFO.height, i420)
+        return imageReader?.surface
+    }
+
     @SuppressLint("WrongConstant")
-    private fun createSurface(): Surface? {
-        return if (useVP9) {
-            // TODO
-            null
+    private fun createImageReader(width: Int, height: Int, i420: Boolean): ImageReader {
+        val hardwareBuffer = captureHardwareBuffer
+        Log.d(logTag, "ImageReader.newInstance:${width}x$height, i420: $i420, hardwareBuffer: $hardwareBuffer")
+        val readerWidth = if (i420) i420PackedWidth(width) else width
+        val readerHeight = if (i420) i420PackedHeight(height) else height
+        val maxImages = VIDEO_FRAME_SLOTS + 1 // one more for acquireLatestImage
+        val reader = if (hardwareBuffer && Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
+            // rust locks the buffers for reading, a native encoder can sample them on the GPU
+            ImageReader.newInstance(
+                readerWidth, readerHeight, PixelFormat.RGBA_8888, maxImages,
+                HardwareBuffer.USAGE_CPU_READ_OFTEN or HardwareBuffer.USAGE_GPU_SAMPLED_IMAGE
+            )
         } else {
-            Log.d(logTag, "ImageReader.newInstance:INFO:$SCREEN_INFO")
-            imageReader =
-                ImageReader.newInstance(
-                    SCREEN_INFO.width,
-                    SCREEN_INFO.height,
-                    PixelFormat.RGBA_8888,
-                    4
-                ).apply {
-                    setOnImageAvailableListener({ imageReader: ImageReader ->
-                        try {
-                            // If not call acquireLatestImage, listener will not be called again
-                            imageReader.acquireLatestImage().use { image ->
-                                if (image == null || !isStart) return@setOnImageAvailableListener
-                                val planes = image.planes
-                                val buffer = planes[0].buffer
-                                buffer.rewind()
-                                FFI.onVideoFrameUpdate(buffer)
-                            }
-                        } catch (ignored: java.lang.Exception) {
-                        }
-                    }, serviceHandler)
+            ImageReader.newInstance(readerWidth, readerHeight, PixelFormat.RGBA_8888, maxImages)
+        }
+        return reader.apply {
+            setOnImageAvailableListener({ imageReader: ImageReader ->
+                var image: Image? = null // closed here on failure, until the ring takes it
+                try {
+                    // If not call acquireLatestImage, listener will not be called again
+                    image = acquireLatestImage(imageReader)
+                        ?: return@setOnImageAvailableListener
+                    val timestamp = image.timestamp
+                    captureThread.onDelivered(timestamp)
+                    if (!isStart || !captureGovernor.shouldForward(timestamp)) {
+                        captureStats.onPaced()
+                        image.close()
+                        return@setOnImageAvailableListener
+                    }
+                    val signaled = screenOff || contentHidden
+                    // the planes of a hardware buffer are not mapped, only the screen state is known
+                    val detected = !signaled && !hardwareBuffer && BlankFrameDetector.isBlank(
+                        image, if (i420) VIDEO_FRAME_FORMAT_I420 else VIDEO_FRAME_FORMAT_RGBA, width, height
+                    )
+                    blankDetections = if (detected) blankDetections + 1 else 0
+                    // a dark UI rarely stays black for long, a secure window does
+                    val blank = signaled || blankDetections >= BLANK_CONFIRM_FRAMES
+                    if (blank && captureGovernor.isBlank) {
+                        // rust already has a blank frame to show
+                        captureStats.onBlank()
+                        image.close()
+                        return@setOnImageAvailableListener
+                    }
+                    captureGovernor.setBlank(blank)
+                    // closed by the ring once rust has consumed it
+                    val published = image
+                    image = null
+                    val res = if (i420) {
+                        videoFrameRing.publish(published, VIDEO_FRAME_FORMAT_I420, width, height, hardwareBuffer)
+                    } else {
+                        videoFrameRing.publish(published, hardwareBuffer = hardwareBuffer)
+                    }
+                    // the ring closes the image when no slot is free
+                    captureStats.onForwarded(timestamp, res)
+                    captureGovernor.onFrameResult(res)
+                    // rust saw a change no accessibility event reported, e.g. a playing video
+                    if (captureGovernor.isSuspended && (res and VIDEO_FRAME_FLAG_IDLE) == 0L) {
+                        noteScreenActivity()
+                    }
+                } catch (e: java.lang.Exception) {
+                    Log.e(logTag, "image listener: $e")
+                    image?.close()
                 }
-            Log.d(logTag, "ImageReader.setOnImageAvailableListener done")
-            imageReader?.surface
+            }, captureThread.handler)
+        }
+    }
+
+    // The buffers of an image reader are only allocated when the producer draws into it,
+    // so keeping one for the rotated geometry is cheap and makes rotation a surface swap.
+    private fun prepareStandbyReader() {
+        val (width, height) = SCREEN_INFO.height to SCREEN_INFO.width
+        val i420 = captureI420 && glScaler != null
+        if (standbyReader != null && standbyGeometry == Triple(width, height, i420)) {
+            return
+        }
+        releaseStandbyReader()
+        standbyReader = createImageReader(width, height, i420)
+        standbyGeometry = Triple(width, height, i420)
+    }
+
+    private fun takeStandbyReader(width: Int, height: Int, i420: Boolean): ImageReader? {
+        if (standbyGeometry != Triple(width, height, i420)) {
+            return null
+        }
+        val reader = standbyReader
+        standbyReader = null
+        standbyGeometry = null
+        return reader
+    }
+
+    private fun releaseStandbyReader() {
+        standbyReader?.close()
+        standbyReader = null
+        standbyGeometry = null
+    }
+
+    // Same as `ImageReader.acquireLatestImage`, counting the images it skips.
+    private fun acquireLatestImage(reader: ImageReader): Image? {
+        var image = reader.acquireNextImage() ?: return null
+        captureStats.onProduced()
+        while (true) {
+            val next = try {
+                reader.acquireNextImage()
+            } catch (e: IllegalStateException) {
+                null // max images acquired, the others are held by the ring
+            } ?: break
+            captureStats.onProduced()
+            captureStats.onDropped()
+            image.close()
+            image = next
+        }
+        return image
+    }
+
+    private val suspendCapture = object : Runnable {
+        override fun run() {
+            // without the accessibility service, nothing would wake the capture quickly
+            if (quietPeriodMs <= 0 || !isStart || !InputService.isOpen) {
+                return
+            }
+            val quiet = SystemClock.uptimeMillis() - lastActivityMs
+            if (quiet >= quietPeriodMs) {
+                captureGovernor.suspend()
+            } else {
+                captureThread.handler.postDelayed(this, quietPeriodMs - quiet)
+            }
+        }
+    }
+
+    // Events can come for every frame of an animation, this only stores a time
+    // unless the capture has to be woken up.
+    private fun noteScreenActivity() {
+        // e.g. the secure window is gone
+        if (captureGovernor.isBlank) {
+            captureGovernor.checkNow()
+        }
+        if (captureGovernor.isSuspended) {
+            captureGovernor.resume()
+            scheduleCaptureSuspend()
+        } else {
+            lastActivityMs = SystemClock.uptimeMillis()
+        }
+    }
+
+    // The content events are only needed to wake a capture suspended after the quiet period.
+    private fun updateContentEvents() {
+        InputService.ctx?.setContentEvents(needsContentEvents)
+    }
+
+    // Starts the quiet period over, call it whenever the governor is reset.
+    private fun scheduleCaptureSuspend() {
+        lastActivityMs = SystemClock.uptimeMillis()
+        val handler = captureThread.handler
+        handler.removeCallbacks(suspendCapture)
+        if (quietPeriodMs > 0) {
+            handler.postDelayed(suspendCapture, quietPeriodMs)
         }
     }
 
@@ -403,6 +864,9 @@ class MainService : Service() {
         return audioRecordHandle.onVoiceCallClosed(mediaProjection)
     }
 
+    // Synchronized with `applyScreenInfo`, a geometry update waits for the capture to start
+    // and then reconfigures it.
+    @Synchronized
     fun startCapture(): Boolean {
         if (isStart) {
             return true
@@ -412,15 +876,10 @@ class MainService : Service() {
             return false
         }
         
+        captureStats.markStart()
         updateScreenInfo(resources.configuration.orientation)
         Log.d(logTag, "Start Capture")
-        surface = createSurface()
-
-        if (useVP9) {
-            startVP9VideoRecorder(mediaProjection!!)
-        } else {
-            startRawVideoRecorder(mediaProjection!!)
-        }
+        startVideo(mediaProjection!!)
 
         if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.R) {
             if (!audioRecordHandle.createAudioRecorder(false, mediaProjection)) {
@@ -434,6 +893,7 @@ class MainService : Service() {
         _isStart = true
         FFI.setFrameRawEnable("video",true)
         MainActivity.rdClipboardManager?.setCaptureStarted(_isStart)
+        updateContentEvents()
         return true
     }
 
@@ -443,8 +903,98 @@ class MainService : Service() {
         FFI.setFrameRawEnable("video",false)
         _isStart = false
         MainActivity.rdClipboardManager?.setCaptureStarted(_isStart)
-        // release video
-        if (reuseVirtualDisplay) {
+        updateContentEvents()
+        stopVideo()
+        warmUpVideo()
+
+        // release audio
+        _isAudioStart = false
+        audioRecordHandle.tryReleaseAudio()
+    }
+
+    // The virtual display and the image reader are created once the media projection is granted,
+    // and kept paused while no one is connected, so `startVideo` is only a surface swap.
+    private val hotStandby: Boolean
+        get() = FFI.getLocalOption("android-capture-hot-standby") == "Y"
+
+    // Rust reads the `HardwareBuffer` of the images, the pixels are never mapped into the JVM.
+    // Read when an image reader is created.
+    private val captureHardwareBuffer: Boolean
+        get() = Build.VERSION.SDK_INT >= Build.VERSION_CODES.P &&
+                FFI.getLocalOption("android-capture-hardware-buffer") == "Y"
+
+    private fun warmUpVideo() {
+        val mp = mediaProjection ?: return
+        if (isStart || !isReady || !hotStandby) {
+            return
+        }
+        // taken by `createSurface` for the same geometry
+        val geometry = Triple(SCREEN_INFO.width, SCREEN_INFO.height, captureI420)
+        if (standbyReader == null || standbyGeometry != geometry) {
+            releaseStandbyReader()
+            standbyReader = createImageReader(geometry.first, geometry.second, geometry.third)
+            standbyGeometry = geometry
+        }
+        if (virtualDisplay != null) {
+            return
+        }
+        try {
+            virtualDisplay = mp.createVirtualDisplay(
+                "RustDeskVD",
+                displayWidth, displayHeight, displayDpi, VIRTUAL_DISPLAY_FLAG_AUTO_MIRROR,
+                null, null, null
+            )
+            Log.d(logTag, "warmUpVideo: paused virtual display ${displayWidth}x$displayHeight")
+        } catch (e: SecurityException) {
+            Log.w(logTag, "warmUpVideo: $e")
+        }
+    }
+
+    private fun startVideo(mp: MediaProjection) {
+        val i420 = captureI420 && surfaceEncoder == null
+        var output = surfaceEncoder?.inputSurface?.also {
+            Log.d(logTag, "start surface encoder video, ${surfaceEncoder?.name}")
+        } ?: let {
+            surface = createSurface(i420)
+            surface
+        }
+        if (output == null) {
+            Log.d(logTag, "startVideo failed,surface is null")
+            return
+        }
+        var input = startScaler(output, i420)
+        if (i420 && input == null) {
+            Log.w(logTag, "startVideo: no I420 conversion on the GPU, capture RGBA")
+            imageReader?.close()
+            surface?.release()
+            surface = createSurface()
+            output = surface ?: return
+            input = startScaler(output)
+        }
+        input?.let {
+            // the virtual display keeps the real size, the frames are scaled on the GPU
+            createOrSetVirtualDisplay(mp, it, displayWidth, displayHeight, displayDpi)
+        } ?: let {
+            createOrSetVirtualDisplay(mp, output, SCREEN_INFO.width, SCREEN_INFO.height, SCREEN_INFO.dpi)
+        }
+        if (surfaceEncoder == null) {
+            prepareStandbyReader()
+            // the surface encoder reads the virtual display without the governor
+            val rate = refreshRate
+            captureThread.handler.post { vsyncClock.start(rate) }
+        }
+        captureGovernor.reset()
+        captureStats.reset()
+        captureThread.reset()
+        encoderThread.reset()
+        scheduleCaptureSuspend()
+    }
+
+    private fun stopVideo() {
+        captureThread.handler.removeCallbacks(suspendCapture)
+        captureThread.handler.post { vsyncClock.stop() }
+        val keepVirtualDisplay = reuseVirtualDisplay || hotStandby
+        if (keepVirtualDisplay) {
             // The virtual display video projection can be paused by calling `setSurface(null)`.
             // https://developer.android.com/reference/android/hardware/display/VirtualDisplay.Callback
             // https://learn.microsoft.com/en-us/dotnet/api/android.hardware.display.virtualdisplay.callback.onpaused?view=net-android-34.0
@@ -452,26 +1002,196 @@ class MainService : Service() {
         } else {
             virtualDisplay?.release()
         }
-        // suface needs to be release after `imageReader.close()` to imageReader access released surface
-        // https://github.com/rustdesk/rustdesk/issues/4118#issuecomment-1515666629
-        imageReader?.close()
+        // before the image reader, the scaler draws into its surface
+        glScaler?.release()
+        glScaler = null
+        // rust has given back its frame in `setFrameRawEnable`, or the ring keeps it until released
+        videoFrameRing.clear()
+        // closing the reader frees its images, it waits for those rust still holds
+        val reader = imageReader
+        val oldSurface = surface
         imageReader = null
-        videoEncoder?.let {
-            it.signalEndOfInputStream()
-            it.stop()
+        surface = null
+        releaseStandbyReader()
+        if (!keepVirtualDisplay) {
+            virtualDisplay = null
+        }
+        videoFrameRing.closeAfterRelease {
+            reader?.close()
+            // suface needs to be release after `imageReader.close()` to imageReader access released surface
+            // https://github.com/rustdesk/rustdesk/issues/4118#issuecomment-1515666629
+            oldSurface?.release()
+        }
+    }
+
+    // Only the video is restarted, the audio recorder keeps running.
+    @Synchronized
+    private fun restartVideo() {
+        if (!isStart) {
+            return
+        }
+        FFI.setFrameRawEnable("video", false)
+        stopVideo()
+        mediaProjection?.let {
+            startVideo(it)
+            FFI.setFrameRawEnable("video", true)
+        }
+    }
+
+    // The media projection and the virtual display are kept, only the capture size changes.
+    // On the service thread, as every geometry change.
+    private fun setQualityLevel(level: Int) {
+        if (qualityLevel == level) {
+            return
+        }
+        Log.d(logTag, "quality level: $qualityLevel -> $level")
+        qualityLevel = level
+        captureGovernor.setTargetFps(min(captureFps, QUALITY_LADDER[level].maxFps))
+        if (surfaceEncoderKbps > 0) {
+            surfaceEncoder?.setBitrate(ladderBitrate(surfaceEncoderKbps))
+        }
+        applyScreenInfo(resources.configuration.orientation)
+    }
+
+    @Synchronized
+    private fun setCaptureI420(i420: Boolean) {
+        if (captureI420 == i420) {
+            return
+        }
+        captureI420 = i420
+        if (isStart && surfaceEncoder == null && !reconfigureVideo(false)) {
+            restartVideo()
+        }
+    }
+
+    private fun ladderBitrate(kbps: Int): Int {
+        return kbps * QUALITY_LADDER[qualityLevel].bitratePercent / 100
+    }
+
+    @Synchronized
+    private fun startSurfaceEncoder(config: JSONObject) {
+        surfaceEncoderKbps = config.optInt("bitrate")
+        config.put("bitrate", ladderBitrate(surfaceEncoderKbps))
+        val encoder = SurfaceVideoEncoder(SCREEN_INFO.width, SCREEN_INFO.height, config, encoderThread, captureStats)
+        val started = encoder.start()
+        if (!started) {
+            Log.e(logTag, "startSurfaceEncoder fail, fall back to image reader")
+        }
+        // rust starts a new one for every encoder it creates
+        val old = surfaceEncoder
+        surfaceEncoder = if (started) encoder else null
+        if (started || old != null) {
+            restartVideo()
+        }
+        // the virtual display no longer renders into it
+        old?.release()
+    }
+
+    @Synchronized
+    private fun stopSurfaceEncoder() {
+        surfaceEncoder?.let {
+            surfaceEncoder = null
+            restartVideo()
             it.release()
         }
-        if (!reuseVirtualDisplay) {
-            virtualDisplay = null
+    }
+
+    // Only the surface encoder is recorded here, rust records the encoders it runs itself.
+    @Synchronized
+    private fun startRecording(config: JSONObject) {
+        stopRecording()
+        val encoder = surfaceEncoder ?: return
+        val recorder = SessionRecorder(config)
+        sessionRecorder = recorder
+        encoder.recorder = recorder
+        // a segment starts with a key frame
+        encoder.requestSyncFrame()
+    }
+
+    // The latest frame held for rust is copied, the capture is not disturbed.
+    // While the capture is stopped, one frame is taken from the virtual display.
+    private fun snapshot(): Snapshot? {
+        if (isStart) {
+            return videoFrameRing.snapshotLatest(snapshotMaxSize)
         }
-        videoEncoder = null
-        // suface needs to be release after `imageReader.close()` to imageReader access released surface
-        // https://github.com/rustdesk/rustdesk/issues/4118#issuecomment-1515666629
-        surface?.release()
+        return snapshotPaused()
+    }
 
-        // release audio
-        _isAudioStart = false
-        audioRecordHandle.tryReleaseAudio()
+    // Not the service monitor, a snapshot can wait up to `SNAPSHOT_TIMEOUT_MS`.
+    private val snapshotLock = Any()
+
+    @SuppressLint("WrongConstant")
+    private fun snapshotPaused(): Snapshot? {
+        synchronized(snapshotLock) {
+            val mp = mediaProjection ?: return null
+            val width = SCREEN_INFO.width
+            val height = SCREEN_INFO.height
+            val latch = CountDownLatch(1)
+            var snapshot: Snapshot? = null
+            val reader = ImageReader.newInstance(width, height, PixelFormat.RGBA_8888, 2)
+            reader.setOnImageAvailableListener({ r: ImageReader ->
+                r.acquireLatestImage()?.let { image ->
+                    if (latch.count > 0) {
+                        snapshot = Snapshot.fromImage(image, VIDEO_FRAME_FORMAT_RGBA, width, height, snapshotMaxSize)
+                        latch.countDown()
+                    }
+                    image.close()
+                }
+            }, captureThread.handler)
+            var paused: VirtualDisplay? = null
+            var pausedGeometry: Triple<Int, Int, Int>? = null // width, height, dpi, restored after
+            var vd: VirtualDisplay? = null
+            try {
+                // The service monitor is only held to attach and detach the surface,
+                // a capture started during the wait takes the virtual display over
+                // and keeps it, the surface is only detached if it is still ours.
+                synchronized(this) {
+                    if (isStart || !isReady) {
+                        return null
+                    }
+                    // a paused one is only kept by `reuseVirtualDisplay` or `hotStandby`
+                    paused = virtualDisplay?.takeIf { reuseVirtualDisplay || hotStandby }
+                    vd = paused?.apply {
+                        pausedGeometry = DisplayMetrics().let {
+                            @Suppress("DEPRECATION")
+                            display.getRealMetrics(it)
+                            Triple(it.widthPixels, it.heightPixels, it.densityDpi)
+                        }
+                        resize(width, height, SCREEN_INFO.dpi)
+                        setSurface(reader.surface)
+                    } ?: mp.createVirtualDisplay(
+                        "RustDeskSnapshot",
+                        width, height, SCREEN_INFO.dpi, VIRTUAL_DISPLAY_FLAG_AUTO_MIRROR,
+                        reader.surface, null, null
+                    )
+                }
+                if (!latch.await(SNAPSHOT_TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+                    Log.w(logTag, "snapshot: no frame in $SNAPSHOT_TIMEOUT_MS ms")
+                }
+            } catch (e: Exception) {
+                Log.w(logTag, "snapshot: $e")
+            } finally {
+                synchronized(this) {
+                    if (vd !== paused) {
+                        vd?.release()
+                    } else if (vd?.surface === reader.surface) {
+                        vd?.setSurface(null)
+                        // the standby reader and `startVideo` expect the size it was paused with
+                        pausedGeometry?.let { (w, h, dpi) -> vd?.resize(w, h, dpi) }
+                    }
+                }
+                // the listener may still run until the reader is closed on the capture thread
+                captureThread.handler.post { reader.close() }
+            }
+            return if (latch.count == 0L) snapshot else null
+        }
+    }
+
+    @Synchronized
+    private fun stopRecording() {
+        surfaceEncoder?.recorder = null
+        sessionRecorder?.stop()
+        sessionRecorder = null
     }
 
     fun destroy() {
@@ -479,14 +1199,23 @@ class MainService : Service() {
         _isReady = false
         _isAudioStart = false
 
+        stopRecording()
         stopCapture()
+        surfaceEncoder?.release()
+        surfaceEncoder = null
 
-        if (reuseVirtualDisplay) {
-            virtualDisplay?.release()
-            virtualDisplay = null
-        }
+        // kept by `reuseVirtualDisplay` or `hotStandby`
+        virtualDisplay?.release()
+        virtualDisplay = null
+        releaseStandbyReader()
 
+        mediaProjection?.unregisterCallback(projectionCallback)
         mediaProjection = null
+        singleAppProjection = false
+        capturedContentWidth = 0
+        capturedContentHeight = 0
+        contentHidden = false
+        updateScreenInfo(resources.configuration.orientation)
         checkMediaPermission()
         stopForeground(true)
         stopService(Intent(this, FloatingWindowService::class.java))
@@ -509,39 +1238,91 @@ class MainService : Service() {
         return isReady
     }
 
-    private fun startRawVideoRecorder(mp: MediaProjection) {
-        Log.d(logTag, "startRawVideoRecorder,screen info:$SCREEN_INFO")
-        if (surface == null) {
-            Log.d(logTag, "startRawVideoRecorder failed,surface is null")
-            return
+    // Returns the surface the virtual display should render into, null if no scaling or conversion is needed.
+    private fun startScaler(output: Surface, i420: Boolean = false): Surface? {
+        if (!i420 && SCREEN_INFO.width == displayWidth && SCREEN_INFO.height == displayHeight) {
+            return null
         }
-        createOrSetVirtualDisplay(mp, surface!!)
+        val scaler = GlScaler(scalerThread)
+        if (!scaler.start(displayWidth, displayHeight, output, SCREEN_INFO.width, SCREEN_INFO.height, i420)) {
+            Log.w(logTag, "startScaler fail, resize the virtual display instead")
+            return null
+        }
+        glScaler = scaler
+        return scaler.inputSurface
     }
 
-    private fun startVP9VideoRecorder(mp: MediaProjection) {
-        createMediaCodec()
-        videoEncoder?.let {
-            surface = it.createInputSurface()
-            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.R) {
-                surface!!.setFrameRate(1F, FRAME_RATE_COMPATIBILITY_DEFAULT)
+    /**
+     * Switch to an image reader of the new size or format without stopping the capture.
+     * The media projection, the virtual display and the audio are kept. On rotation the
+     * virtual display is resized and the standby reader of the rotated geometry is swapped in.
+     * Returns false if the video must be restarted instead.
+     */
+    @Synchronized
+    private fun reconfigureVideo(displayChanged: Boolean): Boolean {
+        // the encoder size is fixed, rust restarts it when it sees the new size
+        if (surfaceEncoder != null || !isStart) {
+            return false
+        }
+        val vd = virtualDisplay ?: return false
+        val scaler = glScaler
+        val scaled = SCREEN_INFO.width != displayWidth || SCREEN_INFO.height != displayHeight
+        if (scaler == null && (scaled || captureI420)) {
+            return false
+        }
+        // rust gives back the frames of the old image reader
+        FFI.setFrameRawEnable("video", false)
+        videoFrameRing.clear()
+        val oldReader = imageReader
+        val oldSurface = surface
+        val i420 = captureI420 && scaler != null
+        val output = createSurface(i420)
+        surface = output
+        var ok = output != null
+        if (output != null) {
+            try {
+                if (scaler != null) {
+                    if (displayChanged) {
+                        vd.resize(displayWidth, displayHeight, displayDpi)
+                        ok = scaler.setInputSize(displayWidth, displayHeight)
+                    }
+                    ok = ok && scaler.setOutput(output, SCREEN_INFO.width, SCREEN_INFO.height, i420)
+                } else {
+                    vd.resize(SCREEN_INFO.width, SCREEN_INFO.height, SCREEN_INFO.dpi)
+                    vd.setSurface(output)
+                }
+            } catch (e: Exception) {
+                Log.e(logTag, "reconfigureVideo fail: $e")
+                ok = false
             }
-            it.setCallback(cb)
-            it.start()
-            createOrSetVirtualDisplay(mp, surface!!)
         }
+        videoFrameRing.closeAfterRelease {
+            oldReader?.close()
+            oldSurface?.release()
+        }
+        if (!ok) {
+            return false
+        }
+        Log.d(logTag, "reconfigureVideo: ${SCREEN_INFO.width}x${SCREEN_INFO.height}, display changed: $displayChanged")
+        prepareStandbyReader()
+        captureGovernor.reset()
+        scheduleCaptureSuspend()
+        FFI.setFrameRawEnable("video", true)
+        return true
     }
 
     // https://github.com/bk138/droidVNC-NG/blob/b79af62db5a1c08ed94e6a91464859ffed6f4e97/app/src/main/java/net/christianbeier/droidvnc_ng/MediaProjectionService.java#L250
     // Reuse virtualDisplay if it exists, to avoid media projection confirmation dialog every connection.
-    private fun createOrSetVirtualDisplay(mp: MediaProjection, s: Surface) {
+    private fun createOrSetVirtualDisplay(mp: MediaProjection, s: Surface, width: Int, height: Int, dpi: Int) {
+        Log.d(logTag, "createOrSetVirtualDisplay: ${width}x$height, dpi: $dpi")
         try {
             virtualDisplay?.let {
-                it.resize(SCREEN_INFO.width, SCREEN_INFO.height, SCREEN_INFO.dpi)
+                it.resize(width, height, dpi)
                 it.setSurface(s)
             } ?: let {
                 virtualDisplay = mp.createVirtualDisplay(
                     "RustDeskVD",
-                    SCREEN_INFO.width, SCREEN_INFO.height, SCREEN_INFO.dpi, VIRTUAL_DISPLAY_FLAG_AUTO_MIRROR,
+                    width, height, dpi, VIRTUAL_DISPLAY_FLAG_AUTO_MIRROR,
                     s, null, null
                 )
             }
@@ -552,49 +1333,6 @@ class MainService : Service() {
         }
     }
 
-    private val cb: MediaCodec.Callback = object : MediaCodec.Callback() {
-        override fun onInputBufferAvailable(codec: MediaCodec, index: Int) {}
-        override fun onOutputFormatChanged(codec: MediaCodec, format: MediaFormat) {}
-
-        override fun onOutputBufferAvailable(
-            codec: MediaCodec,
-            index: Int,
-            info: MediaCodec.BufferInfo
-        ) {
-            codec.getOutputBuffer(index)?.let { buf ->
-                sendVP9Thread.execute {
-                    val byteArray = ByteArray(buf.limit())
-                    buf.get(byteArray)
-                    // sendVp9(byteArray)
-                    codec.releaseOutputBuffer(index, false)
-                }
-            }
-        }
-
-        override fun onError(codec: MediaCodec, e: MediaCodec.CodecException) {
-            Log.e(logTag, "MediaCodec.Callback error:$e")
-        }
-    }
-
-    private fun createMediaCodec() {
-        Log.d(logTag, "MediaFormat.MIMETYPE_VIDEO_VP9 :$MIME_TYPE")
-        videoEncoder = MediaCodec.createEncoderByType(MIME_TYPE)
-        val mFormat =
-            MediaFormat.createVideoFormat(MIME_TYPE, SCREEN_INFO.width, SCREEN_INFO.height)
-        mFormat.setInteger(MediaFormat.KEY_BIT_RATE, VIDEO_KEY_BIT_RATE)
-        mFormat.setInteger(MediaFormat.KEY_FRAME_RATE, VIDEO_KEY_FRAME_RATE)
-        mFormat.setInteger(
-            MediaFormat.KEY_COLOR_FORMAT,
-            MediaCodecInfo.CodecCapabilities.COLOR_FormatYUV420Flexible
-        )
-        mFormat.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL, 5)
-        try {
-            videoEncoder!!.configure(mFormat, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE)
-        } catch (e: Exception) {
-            Log.e(logTag, "mEncoder.configure fail!")
-        }
-    }
-
     private fun initNotification() {
         notificationManager = getSystemService(Context.NOTIFICATION_SERVICE) as NotificationManager
         notificationChannel = if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
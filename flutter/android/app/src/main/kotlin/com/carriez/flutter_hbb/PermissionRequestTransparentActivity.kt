@@ -2,13 +2,16 @@ package com.carriez.flutter_hbb
 
 import android.app.Activity
 import android.content.Intent
+import android.media.projection.MediaProjectionConfig
 import android.media.projection.MediaProjectionManager
 import android.os.Build
 import android.os.Bundle
 import android.util.Log
+import ffi.FFI
 
 class PermissionRequestTransparentActivity: Activity() {
     private val logTag = "permissionRequest"
+    private var singleApp = false
 
     override fun onCreate(savedInstanceState: Bundle?) {
         super.onCreate(savedInstanceState)
@@ -18,7 +21,20 @@ class PermissionRequestTransparentActivity: Activity() {
             ACT_REQUEST_MEDIA_PROJECTION -> {
                 val mediaProjectionManager =
                     getSystemService(MEDIA_PROJECTION_SERVICE) as MediaProjectionManager
-                val intent = mediaProjectionManager.createScreenCaptureIntent()
+                // Since Android 14 the user can share one app instead of the screen,
+                // it is only offered when asked for, the capture geometry follows the app then.
+                val intent = if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.UPSIDE_DOWN_CAKE) {
+                    singleApp = FFI.getLocalOption("android-capture-single-app") == "Y"
+                    mediaProjectionManager.createScreenCaptureIntent(
+                        if (singleApp) {
+                            MediaProjectionConfig.createConfigForUserChoice()
+                        } else {
+                            MediaProjectionConfig.createConfigForDefaultDisplay()
+                        }
+                    )
+                } else {
+                    mediaProjectionManager.createScreenCaptureIntent()
+                }
                 startActivityForResult(intent, REQ_REQUEST_MEDIA_PROJECTION)
             }
             else -> finish()
@@ -43,6 +59,7 @@ class PermissionRequestTransparentActivity: Activity() {
         val serviceIntent = Intent(this, MainService::class.java)
         serviceIntent.action = ACT_INIT_MEDIA_PROJECTION_AND_SERVICE
         serviceIntent.putExtra(EXT_MEDIA_PROJECTION_RES_INTENT, mediaProjectionResultIntent)
+        serviceIntent.putExtra(EXT_SINGLE_APP_PROJECTION, singleApp)
 
         if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
             startForegroundService(serviceIntent)
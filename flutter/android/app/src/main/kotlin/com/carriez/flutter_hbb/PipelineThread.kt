@@ -0,0 +1,67 @@
+package com.carriez.flutter_hbb
+
+import android.os.Handler
+import android.os.HandlerThread
+import org.json.JSONObject
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.atomic.AtomicLong
+import kotlin.math.max
+
+/**
+ * A looper thread dedicated to one stage of the video pipeline.
+ *
+ * The stage reports how many frames it holds ([enter] / [leave]) and how late
+ * they are delivered ([onDelivered]), so the queue depth and latency can be read
+ * with [stats] while the pipeline runs.
+ *
+ * [priority] is one of `Process.THREAD_PRIORITY_*`.
+ */
+class PipelineThread(name: String, priority: Int) {
+    private val thread = HandlerThread(name, priority).apply { start() }
+    val handler = Handler(thread.looper)
+
+    private val depth = AtomicInteger(0)
+    private val maxDepth = AtomicInteger(0)
+    private val latencyUs = AtomicLong(0)
+    private val maxLatencyUs = AtomicLong(0)
+
+    val currentDepth: Int
+        get() = depth.get()
+
+    fun enter() {
+        val d = depth.incrementAndGet()
+        maxDepth.accumulateAndGet(d, ::max)
+    }
+
+    fun leave(n: Int = 1) {
+        depth.addAndGet(-n)
+    }
+
+    /** Resets the maximums and the latency, frames still held keep counting in the depth. */
+    fun reset() {
+        maxDepth.set(depth.get())
+        latencyUs.set(0)
+        maxLatencyUs.set(0)
+    }
+
+    /** [timestampNs] is on the `System.nanoTime()` clock, as `Image` and surface timestamps are. */
+    fun onDelivered(timestampNs: Long) {
+        val us = max(0L, (System.nanoTime() - timestampNs) / 1000)
+        latencyUs.set(us)
+        maxLatencyUs.accumulateAndGet(us, ::max)
+    }
+
+    /** Current values, the maximums are reset after being read. */
+    fun stats(): JSONObject {
+        return JSONObject().apply {
+            put("depth", depth.get())
+            put("max_depth", maxDepth.getAndSet(depth.get()))
+            put("latency_us", latencyUs.get())
+            put("max_latency_us", maxLatencyUs.getAndSet(0))
+        }
+    }
+
+    fun quit() {
+        thread.quitSafely()
+    }
+}
@@ -0,0 +1,205 @@
+package com.carriez.flutter_hbb
+
+import android.media.MediaCodec
+import android.media.MediaFormat
+import android.media.MediaMuxer
+import android.os.Process
+import android.util.Log
+import org.json.JSONObject
+import java.io.File
+import java.nio.ByteBuffer
+import java.text.SimpleDateFormat
+import java.util.Date
+import java.util.Locale
+import java.util.concurrent.atomic.AtomicLong
+
+// Units waiting for the muxer, beyond it they are dropped until the next key frame.
+private const val MAX_QUEUED_BYTES = 8L * 1024 * 1024
+// Written buffers kept for the next units, so the drain thread does not allocate once warmed up.
+private const val MAX_POOLED_BUFFERS = 16
+// Buffer sizes are rounded up to it, so a unit a little bigger than the last can reuse its buffer.
+private const val BUFFER_GRANULARITY = 64 * 1024
+
+/**
+ * Records the access units of the surface encoder into MP4 segments, or WebM for VP9.
+ *
+ * [onOutput] copies the unit into a pooled buffer and returns, the muxer writes on its own
+ * low priority thread, so the encoder drain is never blocked by the disk.
+ * A segment is closed at the first key frame after "max_mb" or "max_secs" of [config],
+ * which is sent by rust with "start_recording", with "dir", "id", "display" and "codec"
+ * to name the files like the recordings of rust.
+ */
+class SessionRecorder(private val config: JSONObject) {
+    private val logTag = "LOG_SESSION_RECORDER"
+    private val thread = PipelineThread("Recorder", Process.THREAD_PRIORITY_BACKGROUND)
+    private val queuedBytes = AtomicLong(0)
+    private val maxBytes = config.optLong("max_mb", 256) * 1024 * 1024
+    private val maxDurationUs = config.optLong("max_secs", 1800) * 1_000_000
+
+    private val pool = ArrayDeque<ByteBuffer>() // guarded by itself
+
+    // drain thread, also set by `setFormat`
+    @Volatile
+    private var waitKey = true
+    @Volatile
+    private var stopped = false
+
+    // recorder thread
+    private var format: MediaFormat? = null
+    private var muxer: MediaMuxer? = null
+    private var track = -1
+    private var segmentBytes = 0L
+    private var segmentStartUs = 0L
+    private var lastPtsUs = -1L
+
+    /** The output format of the encoder, it carries the codec config of the segments. */
+    fun setFormat(format: MediaFormat) {
+        thread.handler.post {
+            closeSegment()
+            this.format = format
+        }
+        waitKey = true
+    }
+
+    /** Called on the drain thread before the output buffer is released. */
+    fun onOutput(buffer: ByteBuffer, info: MediaCodec.BufferInfo) {
+        if (stopped || (info.flags and MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0 || info.size <= 0) {
+            return
+        }
+        val key = (info.flags and MediaCodec.BUFFER_FLAG_KEY_FRAME) != 0
+        if (waitKey && !key) {
+            return
+        }
+        val size = info.size
+        if (queuedBytes.get() + size > MAX_QUEUED_BYTES) {
+            Log.w(logTag, "muxer is behind, wait for key frame")
+            waitKey = true
+            return
+        }
+        waitKey = false
+        val data = obtainBuffer(size)
+        val src = buffer.duplicate()
+        src.position(info.offset)
+        src.limit(info.offset + size)
+        data.put(src)
+        data.flip()
+        val ptsUs = info.presentationTimeUs
+        queuedBytes.addAndGet(size.toLong())
+        thread.enter()
+        val posted = thread.handler.post {
+            try {
+                write(data, ptsUs, key)
+            } catch (e: Exception) {
+                Log.e(logTag, "write fail: $e")
+                closeSegment()
+            } finally {
+                unqueue(data, size)
+            }
+        }
+        // stopped since the check above, the thread has quit
+        if (!posted) {
+            unqueue(data, size)
+        }
+    }
+
+    private fun unqueue(data: ByteBuffer, size: Int) {
+        queuedBytes.addAndGet(-size.toLong())
+        recycleBuffer(data)
+        thread.leave()
+    }
+
+    /** The units already queued are written before the last segment is closed, later ones are dropped. */
+    fun stop() {
+        stopped = true
+        thread.handler.post { closeSegment() }
+        thread.quit()
+    }
+
+    private fun obtainBuffer(size: Int): ByteBuffer {
+        synchronized(pool) {
+            val i = pool.indexOfFirst { it.capacity() >= size }
+            if (i >= 0) {
+                return pool.removeAt(i).apply { clear() }
+            }
+        }
+        val capacity = (size + BUFFER_GRANULARITY - 1) / BUFFER_GRANULARITY * BUFFER_GRANULARITY
+        return ByteBuffer.allocate(capacity)
+    }
+
+    // The smallest buffer goes first when the pool is full, the big ones hold key frames.
+    private fun recycleBuffer(buffer: ByteBuffer) {
+        synchronized(pool) {
+            if (pool.size >= MAX_POOLED_BUFFERS) {
+                // by index, `ByteBuffer.equals` compares the content
+                val smallest = pool.indices.minByOrNull { pool[it].capacity() } ?: return
+                if (pool[smallest].capacity() >= buffer.capacity()) {
+                    return
+                }
+                pool.removeAt(smallest)
+            }
+            pool.add(buffer)
+        }
+    }
+
+    private fun write(data: ByteBuffer, ptsUs: Long, key: Boolean) {
+        if (muxer != null && key &&
+            (segmentBytes >= maxBytes || ptsUs - segmentStartUs >= maxDurationUs)
+        ) {
+            closeSegment()
+        }
+        if (muxer == null && (!key || !openSegment(ptsUs))) {
+            return
+        }
+        // the muxer needs increasing timestamps
+        if (ptsUs <= lastPtsUs) {
+            return
+        }
+        val info = MediaCodec.BufferInfo()
+        info.set(0, data.remaining(), ptsUs - segmentStartUs, if (key) MediaCodec.BUFFER_FLAG_KEY_FRAME else 0)
+        muxer?.writeSampleData(track, data, info)
+        segmentBytes += info.size
+        lastPtsUs = ptsUs
+    }
+
+    private fun openSegment(ptsUs: Long): Boolean {
+        val format = format ?: return false
+        val webm = format.getString(MediaFormat.KEY_MIME) == MediaFormat.MIMETYPE_VIDEO_VP9
+        val dir = File(config.optString("dir"))
+        val time = SimpleDateFormat("yyyyMMddHHmmssSSS", Locale.US).format(Date())
+        val name = "incoming_${config.optString("id")}_${time}_display${config.optInt("display")}_" +
+                config.optString("codec") + if (webm) ".webm" else ".mp4"
+        val file = File(dir, name)
+        try {
+            dir.mkdirs()
+            val m = MediaMuxer(
+                file.path,
+                if (webm) MediaMuxer.OutputFormat.MUXER_OUTPUT_WEBM else MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4
+            )
+            track = m.addTrack(format)
+            m.start()
+            muxer = m
+        } catch (e: Exception) {
+            Log.e(logTag, "open ${file.path} fail: $e")
+            return false
+        }
+        segmentBytes = 0
+        segmentStartUs = ptsUs
+        lastPtsUs = -1
+        Log.d(logTag, "new segment: ${file.path}")
+        return true
+    }
+
+    private fun closeSegment() {
+        muxer?.let {
+            try {
+                it.stop()
+            } catch (e: IllegalStateException) {
+                Log.e(logTag, "stop fail: $e")
+            }
+            it.release()
+            Log.d(logTag, "segment closed, $segmentBytes bytes")
+        }
+        muxer = null
+        track = -1
+    }
+}
@@ -0,0 +1,89 @@
+package com.carriez.flutter_hbb
+
+import android.graphics.Bitmap
+import android.media.Image
+import android.os.Build
+import android.util.Base64
+import org.json.JSONObject
+import java.io.ByteArrayOutputStream
+import kotlin.math.max
+
+/**
+ * A downsampled copy of one captured frame.
+ *
+ * [fromImage] only reads the pixels it keeps, so it is cheap enough to run while the image
+ * is held by [VideoFrameRing]. The compression in [toJson] is done later on the caller's thread.
+ */
+class Snapshot private constructor(val width: Int, val height: Int, private val pixels: IntArray) {
+    companion object {
+        /**
+         * [format] is one of `VIDEO_FRAME_FORMAT_*`, [width] x [height] the size of the frame.
+         * The long edge is reduced to at most [maxSize] by an integer step.
+         */
+        fun fromImage(image: Image, format: Int, width: Int, height: Int, maxSize: Int): Snapshot {
+            val step = if (maxSize > 0) max(1, (max(width, height) + maxSize - 1) / maxSize) else 1
+            val w = max(1, width / step)
+            val h = max(1, height / step)
+            val plane = image.planes[0]
+            val buf = plane.buffer
+            val rs = plane.rowStride
+            val pixels = IntArray(w * h)
+            if (format == VIDEO_FRAME_FORMAT_I420) {
+                // see `i420PackedWidth` for the layout, BT.601 limited range as written by `GlScaler`
+                val uOffset = height * rs
+                val vOffset = uOffset + (width + 7) / 8 * 4
+                for (y in 0 until h) {
+                    val sy = y * step
+                    val chromaRow = (sy / 2) * rs
+                    for (x in 0 until w) {
+                        val sx = x * step
+                        val c = (buf.get(sy * rs + sx).toInt() and 0xFF) - 16
+                        val d = (buf.get(uOffset + chromaRow + sx / 2).toInt() and 0xFF) - 128
+                        val e = (buf.get(vOffset + chromaRow + sx / 2).toInt() and 0xFF) - 128
+                        val r = ((298 * c + 409 * e + 128) shr 8).coerceIn(0, 255)
+                        val g = ((298 * c - 100 * d - 208 * e + 128) shr 8).coerceIn(0, 255)
+                        val b = ((298 * c + 516 * d + 128) shr 8).coerceIn(0, 255)
+                        pixels[y * w + x] = (0xFF shl 24) or (r shl 16) or (g shl 8) or b
+                    }
+                }
+            } else {
+                val ps = plane.pixelStride
+                for (y in 0 until h) {
+                    val row = y * step * rs
+                    for (x in 0 until w) {
+                        val i = row + x * step * ps
+                        val r = buf.get(i).toInt() and 0xFF
+                        val g = buf.get(i + 1).toInt() and 0xFF
+                        val b = buf.get(i + 2).toInt() and 0xFF
+                        pixels[y * w + x] = (0xFF shl 24) or (r shl 16) or (g shl 8) or b
+                    }
+                }
+            }
+            return Snapshot(w, h, pixels)
+        }
+    }
+
+    /** [format] is "jpeg", "png" or "webp", the data is base64. */
+    fun toJson(format: String, quality: Int): JSONObject {
+        val compressFormat = when (format) {
+            "png" -> Bitmap.CompressFormat.PNG
+            "webp" -> if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.R) {
+                Bitmap.CompressFormat.WEBP_LOSSY
+            } else {
+                @Suppress("DEPRECATION")
+                Bitmap.CompressFormat.WEBP
+            }
+            else -> Bitmap.CompressFormat.JPEG
+        }
+        val bitmap = Bitmap.createBitmap(pixels, width, height, Bitmap.Config.ARGB_8888)
+        val out = ByteArrayOutputStream()
+        bitmap.compress(compressFormat, quality.coerceIn(0, 100), out)
+        bitmap.recycle()
+        return JSONObject().apply {
+            put("format", if (format == "png" || format == "webp") format else "jpeg")
+            put("width", width)
+            put("height", height)
+            put("data", Base64.encodeToString(out.toByteArray(), Base64.NO_WRAP))
+        }
+    }
+}
@@ -0,0 +1,182 @@
+package com.carriez.flutter_hbb
+
+import android.media.MediaCodec
+import android.media.MediaCodecInfo
+import android.media.MediaFormat
+import android.os.Build
+import android.os.Bundle
+import android.util.Log
+import android.view.Surface
+import ffi.FFI
+import org.json.JSONException
+import org.json.JSONObject
+
+/**
+ * Hardware encoder fed by the virtual display through its input surface.
+ *
+ * Encoded access units are passed to rust with [FFI.onVideoEncodedUpdate],
+ * the screen is never read back to the CPU.
+ * [config] is sent by rust with "start_surface_encoder". Its optional "low_latency" and
+ * "intra_refresh" (period in frames) are dropped if the codec can not be configured with them.
+ */
+class SurfaceVideoEncoder(
+    private val width: Int,
+    private val height: Int,
+    private val config: JSONObject,
+    private val drain: PipelineThread, // output buffers are handled on its thread
+    private val stats: CaptureStats? = null
+) {
+    private val logTag = "LOG_SURFACE_ENCODER"
+
+    private var codec: MediaCodec? = null
+
+    var inputSurface: Surface? = null
+        private set
+
+    val name: String
+        get() = codec?.name ?: ""
+
+    @Volatile
+    private var outputFormat: MediaFormat? = null
+
+    // Set by MainService, fed on the drain thread after rust has copied the unit.
+    @Volatile
+    var recorder: SessionRecorder? = null
+        set(value) {
+            field = value
+            outputFormat?.let { value?.setFormat(it) }
+        }
+
+    fun start(): Boolean {
+        try {
+            val format = createFormat(false)
+            val realtimeFormat = createFormat(true)
+            val c = MediaCodec.createByCodecName(config.getString("name"))
+            codec = c
+            c.setCallback(callback, drain.handler)
+            try {
+                c.configure(realtimeFormat, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE)
+            } catch (e: Exception) {
+                Log.w(logTag, "configure with realtime options fail: $e, retry without them")
+                c.reset()
+                c.setCallback(callback, drain.handler)
+                c.configure(format, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE)
+            }
+            inputSurface = c.createInputSurface()
+            c.start()
+            Log.d(logTag, "start ${c.name}, ${width}x$height, $config")
+            return true
+        } catch (e: JSONException) {
+            Log.e(logTag, "invalid config: $config, $e")
+        } catch (e: Exception) {
+            Log.e(logTag, "start fail: $e")
+        }
+        release()
+        return false
+    }
+
+    private fun createFormat(realtime: Boolean): MediaFormat {
+        return MediaFormat.createVideoFormat(config.getString("mime"), width, height).apply {
+            setInteger(MediaFormat.KEY_COLOR_FORMAT, MediaCodecInfo.CodecCapabilities.COLOR_FormatSurface)
+            setInteger(MediaFormat.KEY_BIT_RATE, config.getInt("bitrate") * 1000)
+            setInteger(MediaFormat.KEY_FRAME_RATE, config.getInt("fps"))
+            setInteger(MediaFormat.KEY_I_FRAME_INTERVAL, config.getInt("gop"))
+            setInteger(MediaFormat.KEY_BITRATE_MODE, MediaCodecInfo.EncoderCapabilities.BITRATE_MODE_VBR)
+            if (!realtime) {
+                return@apply
+            }
+            if (config.optBoolean("low_latency")) {
+                setInteger(MediaFormat.KEY_PRIORITY, 0) // realtime
+                if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+                    setInteger(MediaFormat.KEY_LATENCY, 1) // output a frame for every input frame
+                }
+                if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
+                    setInteger(MediaFormat.KEY_MAX_B_FRAMES, 0)
+                }
+            }
+            // refreshes a part of every frame instead of sending large key frames
+            val intraRefresh = config.optInt("intra_refresh")
+            if (intraRefresh > 0) {
+                setInteger(MediaFormat.KEY_INTRA_REFRESH_PERIOD, intraRefresh)
+            }
+        }
+    }
+
+    fun setBitrate(kbps: Int) {
+        codec?.let {
+            val params = Bundle()
+            params.putInt(MediaCodec.PARAMETER_KEY_VIDEO_BITRATE, kbps * 1000)
+            try {
+                it.setParameters(params)
+            } catch (e: IllegalStateException) {
+                Log.e(logTag, "setBitrate fail: $e")
+            }
+        }
+    }
+
+    fun requestSyncFrame() {
+        codec?.let {
+            val params = Bundle()
+            params.putInt(MediaCodec.PARAMETER_KEY_REQUEST_SYNC_FRAME, 0)
+            try {
+                it.setParameters(params)
+            } catch (e: IllegalStateException) {
+                Log.e(logTag, "requestSyncFrame fail: $e")
+            }
+        }
+    }
+
+    /** Call it after the virtual display no longer renders into [inputSurface]. */
+    fun release() {
+        codec?.let {
+            try {
+                it.stop()
+            } catch (e: IllegalStateException) {
+                Log.e(logTag, "stop fail: $e")
+            }
+            it.release()
+        }
+        codec = null
+        inputSurface?.release()
+        inputSurface = null
+    }
+
+    private val callback: MediaCodec.Callback = object : MediaCodec.Callback() {
+        override fun onInputBufferAvailable(codec: MediaCodec, index: Int) {}
+        override fun onOutputFormatChanged(codec: MediaCodec, format: MediaFormat) {
+            Log.d(logTag, "output format changed: $format")
+            outputFormat = format
+            recorder?.setFormat(format)
+        }
+
+        override fun onOutputBufferAvailable(
+            codec: MediaCodec,
+            index: Int,
+            info: MediaCodec.BufferInfo
+        ) {
+            drain.enter()
+            drain.onDelivered(info.presentationTimeUs * 1000)
+            if ((info.flags and MediaCodec.BUFFER_FLAG_CODEC_CONFIG) == 0) {
+                stats?.onFrameOut()
+            }
+            try {
+                codec.getOutputBuffer(index)?.let { buf ->
+                    // rust copies the access unit, the buffer can be released right after
+                    if (FFI.onVideoEncodedUpdate(buf, info.offset, info.size, info.presentationTimeUs, info.flags)) {
+                        requestSyncFrame()
+                    }
+                    recorder?.onOutput(buf, info)
+                }
+                codec.releaseOutputBuffer(index, false)
+            } catch (e: IllegalStateException) {
+                // released while the callback is pending
+            } finally {
+                drain.leave()
+            }
+        }
+
+        override fun onError(codec: MediaCodec, e: MediaCodec.CodecException) {
+            Log.e(logTag, "MediaCodec.Callback error:$e")
+        }
+    }
+}
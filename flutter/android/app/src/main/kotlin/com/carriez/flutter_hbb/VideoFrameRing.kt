@@ -0,0 +1,215 @@
+package com.carriez.flutter_hbb
+
+import android.media.Image
+import android.os.Build
+import android.util.Log
+import ffi.FFI
+
+// Must match `VIDEO_FRAME_SLOTS` in libs/scrap/src/android/ring.rs
+const val VIDEO_FRAME_SLOTS = 3
+
+// Must match `FrameFormat` in libs/scrap/src/android/ffi.rs
+const val VIDEO_FRAME_FORMAT_RGBA = 0
+const val VIDEO_FRAME_FORMAT_I420 = 1 // packed as described by `i420PackedWidth`
+
+/**
+ * Keeps the [Image]s whose buffers are shared with rust.
+ *
+ * An image is only closed after rust reports its slot as released,
+ * so the consumer never reads a buffer the [android.media.ImageReader] is recycling.
+ */
+class VideoFrameRing(
+    private val stage: PipelineThread? = null, // reports the images held as its queue depth
+    private val capacity: Int = VIDEO_FRAME_SLOTS
+) {
+    companion object {
+        // low 32 bits of the value returned by rust are released slots, the rest are flags
+        private const val SLOTS_MASK = 0xFFFF_FFFFL
+        // how often the slots retained by [clear] are checked while nothing is published
+        private const val RETAINED_POLL_MS = 100L
+    }
+
+    private val logTag = "LOG_VIDEO_FRAME_RING"
+    private val images = arrayOfNulls<Image>(capacity)
+    // `HardwareBuffer`s given to rust, closed with their image. Not typed, the class is API 26+.
+    private val hardwareBuffers = arrayOfNulls<AutoCloseable>(capacity)
+    private val formats = IntArray(capacity)
+    private val widths = IntArray(capacity)
+    private val heights = IntArray(capacity)
+    private var latest = -1 // slot of the last published image
+    private var retained = 0L // slots rust still held when the ring was cleared
+    private val pendingClose = mutableListOf<() -> Unit>() // run once nothing is retained
+    private val pinned = mutableListOf<Image>() // read by `snapshotLatest` outside the lock
+    private val unpinClose = mutableListOf<Image>() // closed once no longer pinned
+    private val pollRetained = Runnable { pollRetained() }
+
+    /**
+     * Hand the image over to rust, the image must not be closed by the caller.
+     * Returns the `VIDEO_FRAME_FLAG_*` reported by rust. If no slot is free,
+     * the image is closed and [VIDEO_FRAME_FLAG_STALE] is returned.
+     * For [VIDEO_FRAME_FORMAT_I420], [width] x [height] is the size of the frame, not of the packed image.
+     * With [hardwareBuffer], rust gets the `HardwareBuffer` of the image instead of its mapped plane.
+     */
+    @Synchronized
+    fun publish(
+        image: Image,
+        format: Int = VIDEO_FRAME_FORMAT_RGBA,
+        width: Int = image.width,
+        height: Int = image.height,
+        hardwareBuffer: Boolean = false
+    ): Long {
+        var slot = images.indexOfFirst { it == null }
+        if (slot < 0) {
+            recycle(FFI.takeReleasedVideoSlots())
+            slot = images.indexOfFirst { it == null }
+        }
+        if (slot < 0) {
+            Log.d(logTag, "no free slot, drop frame")
+            image.close()
+            return VIDEO_FRAME_FLAG_STALE
+        }
+        images[slot] = image
+        formats[slot] = format
+        widths[slot] = width
+        heights[slot] = height
+        latest = slot
+        stage?.enter()
+        if (hardwareBuffer && Build.VERSION.SDK_INT >= Build.VERSION_CODES.P) {
+            image.hardwareBuffer?.let {
+                hardwareBuffers[slot] = it
+                val res = FFI.onVideoHardwareBufferUpdate(slot, it, width, height, format, image.timestamp)
+                recycle(res)
+                return res and SLOTS_MASK.inv()
+            }
+        }
+        val plane = image.planes[0]
+        val buffer = plane.buffer
+        buffer.rewind()
+        // rows may be padded, pass the real strides so rust reads them in place
+        val res = FFI.onVideoFrameUpdate(
+            slot,
+            buffer,
+            width,
+            height,
+            plane.rowStride,
+            if (format == VIDEO_FRAME_FORMAT_I420) 1 else plane.pixelStride,
+            format,
+            image.timestamp
+        )
+        recycle(res)
+        return res and SLOTS_MASK.inv()
+    }
+
+    /**
+     * A snapshot of the last published image, null if rust has given it back.
+     * The image is pinned while it is read, [publish] and [recycle] do not wait for the copy.
+     */
+    fun snapshotLatest(maxSize: Int): Snapshot? {
+        val image: Image
+        val format: Int
+        val width: Int
+        val height: Int
+        synchronized(this) {
+            val slot = latest
+            if (slot < 0) {
+                return null
+            }
+            image = images[slot] ?: return null
+            format = formats[slot]
+            width = widths[slot]
+            height = heights[slot]
+            pinned.add(image)
+        }
+        return try {
+            Snapshot.fromImage(image, format, width, height, maxSize)
+        } catch (e: IllegalStateException) {
+            // the image reader was closed meanwhile
+            Log.d(logTag, "snapshot: $e")
+            null
+        } finally {
+            unpin(image)
+        }
+    }
+
+    @Synchronized
+    private fun unpin(image: Image) {
+        pinned.remove(image)
+        if (image !in pinned && unpinClose.remove(image)) {
+            image.close()
+        }
+    }
+
+    /**
+     * Close every image rust has given back, call it after `FFI.setFrameRawEnable("video", false)`.
+     * The images rust still holds are kept in their slot and closed once released.
+     */
+    @Synchronized
+    fun clear() {
+        retained = retained or (FFI.takeRetainedVideoSlots() and SLOTS_MASK)
+        for (i in 0 until capacity) {
+            if ((retained and (1L shl i)) == 0L) {
+                close(i)
+            }
+        }
+        if (retained != 0L) {
+            Log.w(logTag, "slots still held by rust: $retained")
+            stage?.handler?.let {
+                it.removeCallbacks(pollRetained)
+                it.postDelayed(pollRetained, RETAINED_POLL_MS)
+            }
+        }
+    }
+
+    /**
+     * Run [action] once no retained image is left, e.g. to close the image reader they come from.
+     * Runs it right away if nothing is retained.
+     */
+    @Synchronized
+    fun closeAfterRelease(action: () -> Unit) {
+        if (retained == 0L) {
+            action()
+        } else {
+            pendingClose.add(action)
+        }
+    }
+
+    @Synchronized
+    private fun pollRetained() {
+        recycle(FFI.takeReleasedVideoSlots())
+        if (retained != 0L) {
+            stage?.handler?.postDelayed(pollRetained, RETAINED_POLL_MS)
+        }
+    }
+
+    private fun recycle(released: Long) {
+        for (i in 0 until capacity) {
+            if ((released and (1L shl i)) != 0L) {
+                close(i)
+            }
+        }
+        if (retained != 0L) {
+            retained = retained and released.inv()
+            if (retained == 0L) {
+                pendingClose.forEach { it() }
+                pendingClose.clear()
+            }
+        }
+    }
+
+    private fun close(slot: Int) {
+        hardwareBuffers[slot]?.close()
+        hardwareBuffers[slot] = null
+        images[slot]?.let {
+            if (it in pinned) {
+                unpinClose.add(it)
+            } else {
+                it.close()
+            }
+            stage?.leave()
+        }
+        images[slot] = null
+        if (latest == slot) {
+            latest = -1
+        }
+    }
+}
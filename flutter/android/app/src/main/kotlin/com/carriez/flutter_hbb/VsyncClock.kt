@@ -0,0 +1,99 @@
+package com.carriez.flutter_hbb
+
+import android.util.Log
+import android.view.Choreographer
+import kotlin.math.max
+
+/**
+ * Vsync grid of the default display, followed with [Choreographer].
+ *
+ * The virtual display composes on vsync, so the image timestamps fall on this grid and
+ * [index] tells which vsync an image belongs to. Pacing on whole vsyncs gives a steady
+ * cadence instead of one that beats against the display.
+ *
+ * Every call must be made on the looper thread that calls [start], the capture thread.
+ * The frame callback only runs between [start] and [stop], and not while [setPaused].
+ */
+class VsyncClock {
+    private val logTag = "LOG_VSYNC_CLOCK"
+    private var started = false // between `start` and `stop`
+    private var paused = false
+    private var running = false // the frame callback is posted
+    private var lastVsyncNs = 0L
+    private var count = 0L // vsyncs since start, skipped ones included
+
+    var periodNs = 0L
+        private set
+
+    private val callback = object : Choreographer.FrameCallback {
+        override fun doFrame(frameTimeNanos: Long) {
+            if (!running) {
+                return
+            }
+            if (lastVsyncNs != 0L && periodNs > 0) {
+                val delta = frameTimeNanos - lastVsyncNs
+                val n = max(1L, (delta + periodNs / 2) / periodNs)
+                count += n
+                // the real period drifts a little from the nominal refresh rate
+                if (n == 1L) {
+                    periodNs = (periodNs * 7 + delta) / 8
+                }
+            }
+            lastVsyncNs = frameTimeNanos
+            Choreographer.getInstance().postFrameCallback(this)
+        }
+    }
+
+    /** [refreshRate] is the nominal rate of the display, refined by the measured vsyncs. */
+    fun start(refreshRate: Float) {
+        setRefreshRate(refreshRate)
+        started = true
+        update()
+    }
+
+    fun stop() {
+        started = false
+        update()
+    }
+
+    /**
+     * A paused clock takes no vsync callback and [index] is -1, e.g. while only one frame
+     * a second is forwarded. It starts over from the next vsync when resumed.
+     */
+    fun setPaused(value: Boolean) {
+        paused = value
+        update()
+    }
+
+    private fun update() {
+        val run = started && !paused
+        if (run == running) {
+            return
+        }
+        running = run
+        if (run) {
+            lastVsyncNs = 0L
+            count = 0L
+            Choreographer.getInstance().postFrameCallback(callback)
+        } else {
+            Choreographer.getInstance().removeFrameCallback(callback)
+        }
+    }
+
+    /** Called when the mode of the display changes. */
+    fun setRefreshRate(refreshRate: Float) {
+        val period = (1_000_000_000 / refreshRate.coerceAtLeast(1f)).toLong()
+        if (period != periodNs) {
+            Log.d(logTag, "refresh rate: $refreshRate")
+            periodNs = period
+        }
+    }
+
+    /** Index of the vsync nearest to [timestampNs], -1 until the first vsync is seen. */
+    fun index(timestampNs: Long): Long {
+        if (!running || lastVsyncNs == 0L || periodNs <= 0) {
+            return -1
+        }
+        return count + Math.floorDiv(timestampNs - lastVsyncNs + periodNs / 2, periodNs)
+    }
+}
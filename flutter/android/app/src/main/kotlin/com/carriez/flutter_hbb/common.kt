@@ -6,6 +6,7 @@ import android.content.Context
 import android.content.Intent
 import android.media.AudioRecord
 import android.media.AudioRecord.READ_BLOCKING
+import android.media.AudioTimestamp
 import android.media.MediaCodecList
 import android.media.MediaFormat
 import android.net.Uri
@@ -25,6 +26,7 @@ import com.hjq.permissions.XXPermissions
 import ffi.FFI
 import java.nio.ByteBuffer
 import java.util.*
+import kotlin.math.roundToInt
 
 
 // intent action, extra
@@ -33,6 +35,7 @@ const val ACT_INIT_MEDIA_PROJECTION_AND_SERVICE = "INIT_MEDIA_PROJECTION_AND_SER
 const val ACT_LOGIN_REQ_NOTIFY = "LOGIN_REQ_NOTIFY"
 const val EXT_INIT_FROM_BOOT = "EXT_INIT_FROM_BOOT"
 const val EXT_MEDIA_PROJECTION_RES_INTENT = "MEDIA_PROJECTION_RES_INTENT"
+const val EXT_SINGLE_APP_PROJECTION = "SINGLE_APP_PROJECTION"
 const val EXT_LOGIN_REQ_NOTIFY = "LOGIN_REQ_NOTIFY"
 
 // Activity requestCode
@@ -54,14 +57,31 @@ const val KEY_IS_SUPPORT_VOICE_CALL = "KEY_IS_SUPPORT_VOICE_CALL"
 const val KEY_SHARED_PREFERENCES = "KEY_SHARED_PREFERENCES"
 const val KEY_START_ON_BOOT_OPT = "KEY_START_ON_BOOT_OPT"
 const val KEY_APP_DIR_CONFIG_PATH = "KEY_APP_DIR_CONFIG_PATH"
+const val KEY_CODEC_INFO = "KEY_CODEC_INFO"
+const val KEY_CODEC_INFO_FINGERPRINT = "KEY_CODEC_INFO_FINGERPRINT"
 
 @SuppressLint("ConstantLocale")
 val LOCAL_NAME = Locale.getDefault().toString()
 val SCREEN_INFO = Info(0, 0, 1, 200)
 
 data class Info(
-    var width: Int, var height: Int, var scale: Int, var dpi: Int
-)
+    var width: Int, var height: Int, var scale: Int, var dpi: Int,
+    // real screen size / captured size per axis, fractional when scaled on the GPU,
+    // the captured sizes are rounded to even numbers so both axes can differ a little
+    var ratioX: Float = scale.toFloat(),
+    var ratioY: Float = scale.toFloat(),
+    // screen position of the captured area, not 0 for a single-app projection
+    var originX: Int = 0,
+    var originY: Int = 0
+) {
+    // captured coordinate -> screen coordinate
+    fun toScreenX(v: Int): Int = originX + scaleX(v)
+    fun toScreenY(v: Int): Int = originY + scaleY(v)
+
+    // captured distance -> screen distance
+    fun scaleX(v: Int): Int = (v * ratioX).roundToInt()
+    fun scaleY(v: Int): Int = (v * ratioY).roundToInt()
+}
 
 fun isSupportVoiceCall(): Boolean {
     // https://developer.android.com/reference/android/media/MediaRecorder.AudioSource#VOICE_COMMUNICATION
@@ -100,6 +120,13 @@ fun startAction(context: Context, action: String) {
 class AudioReader(val bufSize: Int, private val maxFrames: Int) {
     private var currentPos = 0
     private val bufferPool: Array<ByteBuffer>
+    private val audioTimestamp = AudioTimestamp()
+    private var record: AudioRecord? = null
+    private var framesRead = 0L // since `record` started
+
+    // Capture time of the first sample of the last buffer read, on the `System.nanoTime()` clock.
+    var timestampNs = 0L
+        private set
 
     init {
         if (maxFrames < 0 || maxFrames > 32) {
@@ -120,11 +147,30 @@ class AudioReader(val bufSize: Int, private val maxFrames: Int) {
         }
     }
 
+    @RequiresApi(Build.VERSION_CODES.M)
+    private fun updateTimestamp(audioRecord: AudioRecord, bytes: Int) {
+        if (record !== audioRecord) {
+            record = audioRecord
+            framesRead = 0
+        }
+        val rate = audioRecord.sampleRate.toLong()
+        val frames = bytes / (4 * audioRecord.channelCount) // float samples
+        timestampNs = if (audioRecord.getTimestamp(audioTimestamp, AudioTimestamp.TIMEBASE_MONOTONIC) == AudioRecord.SUCCESS) {
+            // the position of one frame is known, ours are counted from the same start
+            audioTimestamp.nanoTime + (framesRead - audioTimestamp.framePosition) * 1_000_000_000L / rate
+        } else {
+            // the last sample was just read
+            System.nanoTime() - frames * 1_000_000_000L / rate
+        }
+        framesRead += frames
+    }
+
     @RequiresApi(Build.VERSION_CODES.M)
     fun readSync(audioRecord: AudioRecord): ByteBuffer? {
         val buffer = bufferPool[currentPos]
         val res = audioRecord.read(buffer, bufSize, READ_BLOCKING)
         return if (res > 0) {
+            updateTimestamp(audioRecord, res)
             next()
             buffer
         } else {
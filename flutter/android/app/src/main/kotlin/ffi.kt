@@ -3,6 +3,7 @@
 package ffi
 
 import android.content.Context
+import android.hardware.HardwareBuffer
 import java.nio.ByteBuffer
 
 import com.carriez.flutter_hbb.RdClipboardManager
@@ -16,8 +17,12 @@ object FFI {
     external fun setClipboardManager(clipboardManager: RdClipboardManager)
     external fun startServer(app_dir: String, custom_client_config: String)
     external fun startService()
-    external fun onVideoFrameUpdate(buf: ByteBuffer)
-    external fun onAudioFrameUpdate(buf: ByteBuffer)
+    external fun onVideoFrameUpdate(slot: Int, buf: ByteBuffer, width: Int, height: Int, rowStride: Int, pixelStride: Int, format: Int, timestamp: Long): Long
+    external fun onVideoHardwareBufferUpdate(slot: Int, buf: HardwareBuffer, width: Int, height: Int, format: Int, timestamp: Long): Long
+    external fun takeReleasedVideoSlots(): Long
+    external fun takeRetainedVideoSlots(): Long
+    external fun onVideoEncodedUpdate(buf: ByteBuffer, offset: Int, size: Int, ptsUs: Long, flags: Int): Boolean
+    external fun onAudioFrameUpdate(buf: ByteBuffer, timestamp: Long)
     external fun translateLocale(localeName: String, input: String): String
     external fun refreshScreen()
     external fun setFrameRawEnable(name: String, value: Boolean)
@@ -2487,6 +2487,10 @@ pub mod keys {
     pub const OPTION_ENABLE_DIRECTX_CAPTURE: &str = "enable-directx-capture";
     pub const OPTION_ENABLE_ANDROID_SOFTWARE_ENCODING_HALF_SCALE: &str =
         "enable-android-software-encoding-half-scale";
+    pub const OPTION_ALLOW_ANDROID_SURFACE_ENCODING: &str = "allow-android-surface-encoding";
+    pub const OPTION_ALLOW_ANDROID_YUV_CAPTURE: &str = "allow-android-yuv-capture";
+    pub const OPTION_ANDROID_CAPTURE_QUIET_PERIOD: &str = "android-capture-quiet-period";
+    pub const OPTION_ANDROID_CAPTURE_MAX_SIZE: &str = "android-capture-max-size";
     pub const OPTION_ENABLE_TRUSTED_DEVICES: &str = "enable-trusted-devices";
     pub const OPTION_AV1_TEST: &str = "av1-test";
     pub const OPTION_TRACKPAD_SPEED: &str = "trackpad-speed";
@@ -2545,6 +2549,13 @@ pub mod keys {
     // android keep screen on
     pub const OPTION_KEEP_SCREEN_ON: &str = "keep-screen-on";
 
+    // android capture, keep the paused virtual display while no one is connected
+    pub const OPTION_ANDROID_CAPTURE_HOT_STANDBY: &str = "android-capture-hot-standby";
+    // android capture, pass the `HardwareBuffer` of the frames instead of their mapped pixels
+    pub const OPTION_ANDROID_CAPTURE_HARDWARE_BUFFER: &str = "android-capture-hardware-buffer";
+    // android capture, let the user share a single app instead of the screen, Android 14+
+    pub const OPTION_ANDROID_CAPTURE_SINGLE_APP: &str = "android-capture-single-app";
+
     pub const OPTION_DISABLE_GROUP_PANEL: &str = "disable-group-panel";
     pub const OPTION_DISABLE_DISCOVERY_PANEL: &str = "disable-discovery-panel";
     pub const OPTION_PRE_ELEVATE_SERVICE: &str = "pre-elevate-service";
@@ -2614,6 +2625,9 @@ pub mod keys {
         OPTION_FLOATING_WINDOW_TRANSPARENCY,
         OPTION_FLOATING_WINDOW_SVG,
         OPTION_KEEP_SCREEN_ON,
+        OPTION_ANDROID_CAPTURE_HOT_STANDBY,
+        OPTION_ANDROID_CAPTURE_HARDWARE_BUFFER,
+        OPTION_ANDROID_CAPTURE_SINGLE_APP,
         OPTION_DISABLE_GROUP_PANEL,
         OPTION_DISABLE_DISCOVERY_PANEL,
         OPTION_PRE_ELEVATE_SERVICE,
@@ -2666,6 +2680,10 @@ pub mod keys {
         OPTION_PRESET_ADDRESS_BOOK_TAG,
         OPTION_ENABLE_DIRECTX_CAPTURE,
         OPTION_ENABLE_ANDROID_SOFTWARE_ENCODING_HALF_SCALE,
+        OPTION_ALLOW_ANDROID_SURFACE_ENCODING,
+        OPTION_ALLOW_ANDROID_YUV_CAPTURE,
+        OPTION_ANDROID_CAPTURE_QUIET_PERIOD,
+        OPTION_ANDROID_CAPTURE_MAX_SIZE,
         OPTION_ENABLE_TRUSTED_DEVICES,
     ];
 
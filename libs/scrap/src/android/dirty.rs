@@ -0,0 +1,172 @@
+use super::ffi::{FrameDesc, FrameFormat};
+
+const HASH_SEED: u64 = 0xcbf29ce484222325;
+const HASH_MUL: u64 = 0x517cc1b727220a95;
+
+/// Detects a changed frame by hashing its visible pixels.
+///
+/// Only the hash of the previous frame is kept, so a static frame is detected
+/// without copying it. A hash collision makes a changed frame look unchanged, the
+/// next change fixes it.
+pub struct FrameHasher {
+    width: usize,
+    height: usize,
+    hash: u64,
+}
+
+impl FrameHasher {
+    pub fn new() -> Self {
+        Self {
+            width: 0,
+            height: 0,
+            hash: HASH_SEED,
+        }
+    }
+
+    /// Forget the previous frame, the next one is reported as changed.
+    pub fn reset(&mut self) {
+        self.width = 0;
+        self.height = 0;
+    }
+
+    /// Hash `data` and return whether it differs from the previous frame.
+    pub fn update(&mut self, data: &[u8], desc: &FrameDesc) -> bool {
+        if data.len() < desc.min_len() {
+            return false;
+        }
+        let row_bytes = desc.width * desc.pixel_stride;
+        let mut h = HASH_SEED;
+        // Row by row, the padding of the rows is skipped.
+        for y in 0..desc.height {
+            let start = y * desc.row_stride;
+            h = hash(h, &data[start..start + row_bytes]);
+        }
+        if desc.format == FrameFormat::I420 {
+            let [_, u, v] = desc.i420_offsets();
+            let chroma_bytes = (desc.width + 1) / 2;
+            for plane in [u, v] {
+                for y in 0..(desc.height + 1) / 2 {
+                    let start = plane + y * desc.row_stride;
+                    h = hash(h, &data[start..start + chroma_bytes]);
+                }
+            }
+        }
+        let geometry_changed = self.width != desc.width || self.height != desc.height;
+        let changed = geometry_changed || h != self.hash;
+        self.width = desc.width;
+        self.height = desc.height;
+        self.hash = h;
+        changed
+    }
+}
+
+#[inline]
+fn hash(mut h: u64, bytes: &[u8]) -> u64 {
+    let mut chunks = bytes.chunks_exact(8);
+    for c in &mut chunks {
+        let v = u64::from_le_bytes([c[0], c[1], c[2], c[3], c[4], c[5], c[6], c[7]]);
+        h = (h.rotate_left(5) ^ v).wrapping_mul(HASH_MUL);
+    }
+    for b in chunks.remainder() {
+        h = (h.rotate_left(5) ^ *b as u64).wrapping_mul(HASH_MUL);
+    }
+    h
+}
+
+#[cfg(test)]
+mod tests {
+    use super::*;
+
+    fn rgba(width: usize, height: usize) -> (Vec<u8>, FrameDesc) {
+        let desc = FrameDesc {
+            width,
+            height,
+            row_stride: width * 4 + 16, // padded rows
+            pixel_stride: 4,
+            format: FrameFormat::Rgba,
+            timestamp: 0,
+        };
+        (vec![0; desc.row_stride * height], desc)
+    }
+
+    fn i420(width: usize, height: usize) -> (Vec<u8>, FrameDesc) {
+        let desc = FrameDesc {
+            width,
+            height,
+            row_stride: (width + 7) / 8 * 8,
+            pixel_stride: 1,
+            format: FrameFormat::I420,
+            timestamp: 0,
+        };
+        (vec![0; desc.row_stride * (height + (height + 1) / 2)], desc)
+    }
+
+    #[test]
+    fn first_frame_is_changed() {
+        let (data, desc) = rgba(200, 130);
+        let mut frames = FrameHasher::new();
+        assert!(frames.update(&data, &desc));
+    }
+
+    #[test]
+    fn static_frame_is_unchanged() {
+        let (data, desc) = rgba(200, 130);
+        let mut frames = FrameHasher::new();
+        frames.update(&data, &desc);
+        assert!(!frames.update(&data, &desc));
+    }
+
+    #[test]
+    fn changed_pixel_is_detected() {
+        let (mut data, desc) = rgba(200, 130);
+        let mut frames = FrameHasher::new();
+        frames.update(&data, &desc);
+        data[70 * desc.row_stride + 130 * 4] = 1;
+        assert!(frames.update(&data, &desc));
+        assert!(!frames.update(&data, &desc));
+        // the last pixel of the frame
+        data[129 * desc.row_stride + 199 * 4 + 3] = 1;
+        assert!(frames.update(&data, &desc));
+    }
+
+    #[test]
+    fn row_padding_is_ignored() {
+        let (mut data, desc) = rgba(200, 130);
+        let mut frames = FrameHasher::new();
+        frames.update(&data, &desc);
+        data[desc.width * 4] = 1;
+        assert!(!frames.update(&data, &desc));
+    }
+
+    #[test]
+    fn chroma_change_is_detected() {
+        let (mut data, desc) = i420(200, 130);
+        let mut frames = FrameHasher::new();
+        frames.update(&data, &desc);
+        let [_, u, v] = desc.i420_offsets();
+        // chroma of the frame pixel (140, 70)
+        data[u + 35 * desc.row_stride + 70] = 1;
+        assert!(frames.update(&data, &desc));
+        data[v + 35 * desc.row_stride + 70] = 1;
+        assert!(frames.update(&data, &desc));
+        assert!(!frames.update(&data, &desc));
+    }
+
+    #[test]
+    fn reset_and_new_size_report_a_change() {
+        let (data, desc) = rgba(200, 130);
+        let mut frames = FrameHasher::new();
+        frames.update(&data, &desc);
+        frames.reset();
+        assert!(frames.update(&data, &desc));
+        let (data, desc) = rgba(100, 100);
+        assert!(frames.update(&data, &desc));
+    }
+
+    #[test]
+    fn short_buffer_is_ignored() {
+        let (data, desc) = rgba(200, 130);
+        let mut frames = FrameHasher::new();
+        assert!(!frames.update(&data[..data.len() / 2], &desc));
+    }
+}
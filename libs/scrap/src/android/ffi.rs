@@ -1,7 +1,7 @@
 use jni::objects::JByteBuffer;
 use jni::objects::JString;
 use jni::objects::JValue;
-use jni::sys::jboolean;
+use jni::sys::{jboolean, jint, jlong};
 use jni::JNIEnv;
 use jni::{
     objects::{GlobalRef, JClass, JObject},
@@ -13,31 +13,139 @@ use hbb_common::{message_proto::MultiClipboards, protobuf::Message};
 use jni::errors::{Error as JniError, Result as JniResult};
 use lazy_static::lazy_static;
 use serde::Deserialize;
+
+use super::hardware_buffer::HardwareBufferLock;
+use super::ring::*;
+use std::collections::VecDeque;
 use std::ops::Not;
 use std::os::raw::c_void;
 use std::sync::atomic::{AtomicPtr, Ordering::SeqCst};
-use std::sync::{Mutex, RwLock};
+use std::sync::{Condvar, Mutex, RwLock};
 use std::time::{Duration, Instant};
 
 lazy_static! {
     static ref JVM: RwLock<Option<JavaVM>> = RwLock::new(None);
     static ref MAIN_SERVICE_CTX: RwLock<Option<GlobalRef>> = RwLock::new(None); // MainService -> video service / audio service / info
-    static ref VIDEO_RAW: Mutex<FrameRaw> = Mutex::new(FrameRaw::new("video", MAX_VIDEO_FRAME_TIMEOUT));
+    static ref VIDEO_RING: Mutex<FrameRing> = Mutex::new(FrameRing::new("video", VIDEO_FRAME_SLOTS, MAX_VIDEO_FRAME_TIMEOUT));
+    static ref VIDEO_RING_RELEASED: Condvar = Condvar::new();
+    static ref VIDEO_RING_PUBLISHED: Condvar = Condvar::new(); // wakes the consumer waiting for a frame
+    static ref VIDEO_ENCODED: Mutex<EncodedQueue> = Mutex::new(EncodedQueue::new());
+    static ref VIDEO_ENCODED_PUSHED: Condvar = Condvar::new();
     static ref AUDIO_RAW: Mutex<FrameRaw> = Mutex::new(FrameRaw::new("audio", MAX_AUDIO_FRAME_TIMEOUT));
+    static ref VIDEO_WIRE_LATENCY: Mutex<WireLatency> = Mutex::new(WireLatency::default());
     static ref NDK_CONTEXT_INITED: Mutex<bool> = Default::default();
     static ref MEDIA_CODEC_INFOS: RwLock<Option<MediaCodecInfos>> = RwLock::new(None);
     static ref CLIPBOARD_MANAGER: RwLock<Option<GlobalRef>> = RwLock::new(None);
     static ref CLIPBOARDS_HOST: Mutex<Option<MultiClipboards>> = Mutex::new(None);
     static ref CLIPBOARDS_CLIENT: Mutex<Option<MultiClipboards>> = Mutex::new(None);
+    static ref SNAPSHOT_LOCK: Mutex<()> = Mutex::new(());
 }
 
 const MAX_VIDEO_FRAME_TIMEOUT: Duration = Duration::from_millis(100);
 const MAX_AUDIO_FRAME_TIMEOUT: Duration = Duration::from_millis(1000);
+// About 2 seconds at 30 fps, the queue is cleared when the consumer falls further behind.
+const MAX_VIDEO_ENCODED_UNITS: usize = 60;
+
+// `MediaCodec.BUFFER_FLAG_*`
+const BUFFER_FLAG_KEY_FRAME: jint = 1;
+const BUFFER_FLAG_CODEC_CONFIG: jint = 2;
+// How long `setFrameRawEnable("video", false)` waits for the consumer to give back its frame,
+// the producer closes the `ImageReader` right after it.
+const MAX_VIDEO_RELEASE_WAIT: Duration = Duration::from_millis(200);
+
+/// Pixel layout of a frame, must match `VIDEO_FRAME_FORMAT_*` in VideoFrameRing.kt
+#[derive(Debug, Clone, Copy, PartialEq, Eq)]
+pub enum FrameFormat {
+    Rgba = 0,
+    // Converted on the GPU and packed into an RGBA image, see `i420PackedWidth` in GlScaler.kt.
+    // The first `height` rows are Y, each following row holds a U row then a V row,
+    // all planes share `row_stride`. `pixel_stride` is 1.
+    I420 = 1,
+}
+
+impl Default for FrameFormat {
+    fn default() -> Self {
+        FrameFormat::Rgba
+    }
+}
+
+impl FrameFormat {
+    fn from_jint(v: jint) -> Option<Self> {
+        match v {
+            0 => Some(FrameFormat::Rgba),
+            1 => Some(FrameFormat::I420),
+            _ => None,
+        }
+    }
+}
+
+/// Geometry of a frame as reported by the producer.
+///
+/// `row_stride` and `pixel_stride` are taken from `Image.Plane`, so padded rows
+/// can be read in place instead of guessing the stride from the buffer length.
+/// `width` and `height` are the size of the frame, not of the packed I420 image.
+#[derive(Debug, Default, Clone, Copy, PartialEq, Eq)]
+pub struct FrameDesc {
+    pub width: usize,
+    pub height: usize,
+    pub row_stride: usize,
+    pub pixel_stride: usize,
+    pub format: FrameFormat,
+    pub timestamp: i64, // ns, `Image.getTimestamp()` or the audio capture time, see `monotonic_ns`
+}
+
+impl FrameDesc {
+    // The last row of an `Image.Plane` buffer is usually not padded.
+    pub(crate) fn min_len(&self) -> usize {
+        if self.height == 0 {
+            return 0;
+        }
+        match self.format {
+            FrameFormat::Rgba => {
+                self.row_stride * (self.height - 1) + self.width * self.pixel_stride
+            }
+            FrameFormat::I420 => {
+                let rows = self.height + (self.height + 1) / 2;
+                self.row_stride * (rows - 1) + self.i420_packed_row()
+            }
+        }
+    }
+
+    pub(crate) fn is_valid(&self, len: usize) -> bool {
+        self.width > 0
+            && self.height > 0
+            && self.pixel_stride > 0
+            && self.row_stride >= self.width * self.pixel_stride
+            && (self.format != FrameFormat::I420
+                || (self.pixel_stride == 1 && self.row_stride >= self.i420_packed_row()))
+            && len >= self.min_len()
+    }
+
+    /// Time since the producer captured the frame, `None` if it sent no timestamp.
+    pub fn capture_age(&self) -> Option<Duration> {
+        if self.timestamp <= 0 {
+            return None;
+        }
+        Some(Duration::from_nanos((monotonic_ns() - self.timestamp).max(0) as _))
+    }
+
+    /// Byte offsets of the Y, U and V planes, all with `row_stride`.
+    pub fn i420_offsets(&self) -> [usize; 3] {
+        let u = self.row_stride * self.height;
+        [0, u, u + self.i420_packed_row() / 2]
+    }
+
+    // Used bytes of a packed row, 4 bytes per RGBA pixel.
+    fn i420_packed_row(&self) -> usize {
+        (self.width + 7) / 8 * 8
+    }
+}
 
 struct FrameRaw {
     name: &'static str,
     ptr: AtomicPtr<u8>,
     len: usize,
+    desc: FrameDesc,
     last_update: Instant,
     timeout: Duration,
     enable: bool,
@@ -49,6 +157,7 @@ impl FrameRaw {
             name,
             ptr: AtomicPtr::default(),
             len: 0,
+            desc: FrameDesc::default(),
             last_update: Instant::now(),
             timeout,
             enable: false,
@@ -61,18 +170,19 @@ impl FrameRaw {
         self.len = 0;
     }
 
-    fn update(&mut self, data: *mut u8, len: usize) {
+    fn update(&mut self, data: *mut u8, len: usize, desc: FrameDesc) {
         if self.enable.not() {
             return;
         }
         self.len = len;
+        self.desc = desc;
         self.ptr.store(data, SeqCst);
         self.last_update = Instant::now();
     }
 
     // take inner data as slice
     // release when success
-    fn take<'a>(&mut self, dst: &mut Vec<u8>, last: &mut Vec<u8>) -> Option<()> {
+    fn take<'a>(&mut self, dst: &mut Vec<u8>, last: &mut Vec<u8>) -> Option<FrameDesc> {
         if self.enable.not() {
             return None;
         }
@@ -80,11 +190,17 @@ impl FrameRaw {
         if ptr.is_null() || self.len == 0 {
             None
         } else {
-            if self.last_update.elapsed() > self.timeout {
+            // JNI and scheduling delays count too when the producer sent the capture time
+            let age = self
+                .desc
+                .capture_age()
+                .unwrap_or_else(|| self.last_update.elapsed());
+            if age > self.timeout {
                 log::trace!("Failed to take {} raw,timeout!", self.name);
                 return None;
             }
             let slice = unsafe { std::slice::from_raw_parts(ptr, self.len) };
+            let desc = self.desc;
             self.release();
             if last.len() == slice.len() && crate::would_block_if_equal(last, slice).is_err() {
                 return None;
@@ -93,7 +209,7 @@ impl FrameRaw {
             unsafe {
                 std::ptr::copy_nonoverlapping(slice.as_ptr(), dst.as_mut_ptr(), slice.len());
             }
-            Some(())
+            Some(desc)
         }
     }
 
@@ -103,12 +219,179 @@ impl FrameRaw {
     }
 }
 
-pub fn get_video_raw<'a>(dst: &mut Vec<u8>, last: &mut Vec<u8>) -> Option<()> {
-    VIDEO_RAW.lock().ok()?.take(dst, last)
+/// An access unit produced by the surface encoder in MainService.kt.
+#[derive(Debug, Clone)]
+pub struct EncodedUnit {
+    pub data: Vec<u8>,
+    pub pts: i64, // ms
+    pub key: bool,
 }
 
-pub fn get_audio_raw<'a>(dst: &mut Vec<u8>, last: &mut Vec<u8>) -> Option<()> {
-    AUDIO_RAW.lock().ok()?.take(dst, last)
+struct EncodedQueue {
+    enable: bool,
+    units: VecDeque<EncodedUnit>,
+    codec_config: Vec<u8>,
+    wait_key: bool,
+}
+
+impl EncodedQueue {
+    fn new() -> Self {
+        EncodedQueue {
+            enable: false,
+            units: VecDeque::new(),
+            codec_config: Vec::new(),
+            wait_key: false,
+        }
+    }
+
+    fn set_enable(&mut self, value: bool) {
+        self.enable = value;
+        self.units.clear();
+        self.codec_config.clear();
+        self.wait_key = false;
+    }
+
+    // Returns true if the producer should request a sync frame.
+    fn push(&mut self, data: &[u8], pts_us: i64, flags: jint) -> bool {
+        if self.enable.not() {
+            return false;
+        }
+        if flags & BUFFER_FLAG_CODEC_CONFIG != 0 {
+            self.codec_config = data.to_vec();
+            return false;
+        }
+        let key = flags & BUFFER_FLAG_KEY_FRAME != 0;
+        if self.units.len() >= MAX_VIDEO_ENCODED_UNITS {
+            // Deltas can not be dropped one by one, restart from the next key frame.
+            log::trace!("Video encoded queue is full, wait for key frame");
+            self.units.clear();
+            self.wait_key = true;
+        }
+        if self.wait_key && !key {
+            return true;
+        }
+        self.wait_key = false;
+        // Key frames carry the parameter sets, the decoder may join at any of them.
+        let mut unit = Vec::with_capacity(
+            data.len() + if key { self.codec_config.len() } else { 0 },
+        );
+        if key {
+            unit.extend_from_slice(&self.codec_config);
+        }
+        unit.extend_from_slice(data);
+        self.units.push_back(EncodedUnit {
+            data: unit,
+            pts: pts_us / 1000,
+            key,
+        });
+        false
+    }
+}
+
+// The frame memory is owned by the producer until `release_video_frame` is called.
+// Waits up to `timeout` for the producer to publish a frame, so the frame is taken
+// when it arrives instead of on the consumer's next poll.
+pub fn acquire_video_frame(timeout: Duration) -> Option<FrameRef> {
+    let deadline = Instant::now() + timeout;
+    let mut ring = VIDEO_RING.lock().ok()?;
+    loop {
+        if let Some(frame) = ring.acquire() {
+            return Some(frame);
+        }
+        let now = Instant::now();
+        if now >= deadline {
+            return None;
+        }
+        ring = VIDEO_RING_PUBLISHED.wait_timeout(ring, deadline - now).ok()?.0;
+    }
+}
+
+pub fn release_video_frame(slot: usize) {
+    if let Ok(mut ring) = VIDEO_RING.lock() {
+        ring.release(slot);
+    }
+    VIDEO_RING_RELEASED.notify_all();
+}
+
+pub fn mark_video_frame_changed() {
+    if let Ok(mut ring) = VIDEO_RING.lock() {
+        ring.mark_changed();
+    }
+}
+
+pub fn enable_video_encoded(value: bool) {
+    VIDEO_ENCODED.lock().unwrap().set_enable(value);
+    VIDEO_ENCODED_PUSHED.notify_all();
+}
+
+// Moves the pending access units to `dst`, `None` if the surface encoder is not in use.
+// Waits up to `timeout` for the first unit.
+pub fn take_video_encoded(dst: &mut Vec<EncodedUnit>, timeout: Duration) -> Option<usize> {
+    dst.clear();
+    let deadline = Instant::now() + timeout;
+    let mut queue = VIDEO_ENCODED.lock().ok()?;
+    loop {
+        if queue.enable.not() {
+            return None;
+        }
+        let now = Instant::now();
+        if !queue.units.is_empty() || now >= deadline {
+            break;
+        }
+        queue = VIDEO_ENCODED_PUSHED.wait_timeout(queue, deadline - now).ok()?.0;
+    }
+    dst.extend(queue.units.drain(..));
+    Some(dst.len())
+}
+
+// Returns the capture timestamp of the samples, see `monotonic_ns`.
+pub fn get_audio_raw<'a>(dst: &mut Vec<u8>, last: &mut Vec<u8>) -> Option<i64> {
+    AUDIO_RAW.lock().ok()?.take(dst, last).map(|desc| desc.timestamp)
+}
+
+/// The clock of `System.nanoTime()`, `Image.getTimestamp()` and the audio timestamps.
+pub fn monotonic_ns() -> i64 {
+    let mut ts = hbb_common::libc::timespec {
+        tv_sec: 0,
+        tv_nsec: 0,
+    };
+    unsafe { hbb_common::libc::clock_gettime(hbb_common::libc::CLOCK_MONOTONIC, &mut ts) };
+    ts.tv_sec as i64 * 1_000_000_000 + ts.tv_nsec as i64
+}
+
+// From the capture timestamp of a video frame to the encoded frame being queued for the peers.
+#[derive(Default)]
+struct WireLatency {
+    last_capture_ns: i64,
+    count: u64,
+    sum_us: u64,
+    max_us: u64,
+}
+
+// Called by the capturer with the timestamp of the frame it returns.
+pub fn on_video_frame_captured(timestamp_ns: i64) {
+    VIDEO_WIRE_LATENCY.lock().unwrap().last_capture_ns = timestamp_ns;
+}
+
+// Called by the video service once the frame returned by the capturer is sent.
+pub fn on_video_frame_sent() {
+    let mut l = VIDEO_WIRE_LATENCY.lock().unwrap();
+    let ts = std::mem::replace(&mut l.last_capture_ns, 0);
+    if ts <= 0 {
+        return;
+    }
+    let us = ((monotonic_ns() - ts).max(0) / 1000) as u64;
+    l.count += 1;
+    l.sum_us += us;
+    l.max_us = l.max_us.max(us);
+}
+
+/// Average and max glass-to-wire latency in us since the last call, `None` if no frame was sent.
+pub fn take_video_wire_latency() -> Option<(u64, u64)> {
+    let mut l = VIDEO_WIRE_LATENCY.lock().unwrap();
+    let res = (l.count > 0).then(|| (l.sum_us / l.count, l.max_us));
+    *l = WireLatency::default();
+    res
 }
 
 pub fn get_clipboards(client: bool) -> Option<MultiClipboards> {
@@ -119,18 +402,127 @@ pub fn get_clipboards(client: bool) -> Option<MultiClipboards> {
     }
 }
 
+// Returns a bit mask of the slots whose `Image` can be closed by the producer,
+// the published slot itself is included if the frame is rejected.
+// The high bits carry `FRAME_FLAG_*` for the producer's frame-rate governor.
 #[no_mangle]
 pub extern "system" fn Java_ffi_FFI_onVideoFrameUpdate(
     env: JNIEnv,
     _class: JClass,
+    slot: jint,
     buffer: JObject,
-) {
+    width: jint,
+    height: jint,
+    row_stride: jint,
+    pixel_stride: jint,
+    format: jint,
+    timestamp: jlong,
+) -> jlong {
+    let slot = slot.max(0) as usize;
+    let mut ring = VIDEO_RING.lock().unwrap();
+    let jb = JByteBuffer::from(buffer);
+    if let (Ok(data), Some(format)) = (
+        env.get_direct_buffer_address(&jb),
+        FrameFormat::from_jint(format),
+    ) {
+        if let Ok(len) = env.get_direct_buffer_capacity(&jb) {
+            let desc = FrameDesc {
+                width: width.max(0) as _,
+                height: height.max(0) as _,
+                row_stride: row_stride.max(0) as _,
+                pixel_stride: pixel_stride.max(0) as _,
+                format,
+                timestamp,
+            };
+            if desc.is_valid(len) {
+                let res = ring.publish(slot, data as _, len, desc);
+                VIDEO_RING_PUBLISHED.notify_all();
+                return res as _;
+            }
+            log::trace!("Invalid video frame, len: {len}, desc: {desc:?}");
+        }
+    }
+    (ring.take_released() | (1 << slot)) as _
+}
+
+// Same as `onVideoFrameUpdate`, the pixels are read from the `HardwareBuffer` of the `Image`,
+// they are never mapped into a JVM `ByteBuffer`. The strides are those of the buffer.
+#[no_mangle]
+pub extern "system" fn Java_ffi_FFI_onVideoHardwareBufferUpdate(
+    env: JNIEnv,
+    _class: JClass,
+    slot: jint,
+    buffer: JObject,
+    width: jint,
+    height: jint,
+    format: jint,
+    timestamp: jlong,
+) -> jlong {
+    let slot = slot.max(0) as usize;
+    // locked before the ring, it can wait for the GPU
+    let lock = HardwareBufferLock::from_java(&env, &buffer);
+    let mut ring = VIDEO_RING.lock().unwrap();
+    if let (Some(lock), Some(format)) = (lock, FrameFormat::from_jint(format)) {
+        let desc = FrameDesc {
+            width: width.max(0) as _,
+            height: height.max(0) as _,
+            row_stride: lock.row_stride(),
+            pixel_stride: if format == FrameFormat::I420 { 1 } else { 4 },
+            format,
+            timestamp,
+        };
+        if desc.is_valid(lock.len()) {
+            let res = ring.publish_hardware_buffer(slot, lock, desc);
+            VIDEO_RING_PUBLISHED.notify_all();
+            return res as _;
+        }
+        log::trace!("Invalid video hardware buffer, len: {}, desc: {desc:?}", lock.len());
+    }
+    (ring.take_released() | (1 << slot)) as _
+}
+
+#[no_mangle]
+pub extern "system" fn Java_ffi_FFI_takeReleasedVideoSlots(_env: JNIEnv, _class: JClass) -> jlong {
+    VIDEO_RING.lock().unwrap().take_released() as _
+}
+
+// The slots a consumer still holds after `setFrameRawEnable("video", false)` timed out,
+// their images must stay open until the slots come back through `takeReleasedVideoSlots`.
+// The slots released before are dropped from the next report, the producer closes them now.
+#[no_mangle]
+pub extern "system" fn Java_ffi_FFI_takeRetainedVideoSlots(_env: JNIEnv, _class: JClass) -> jlong {
+    let mut ring = VIDEO_RING.lock().unwrap();
+    ring.take_released();
+    ring.retired() as _
+}
+
+// `buffer` is the direct output buffer of the encoder, it is copied before returning
+// so the producer can release it right away.
+// Returns true if the producer should request a sync frame.
+#[no_mangle]
+pub extern "system" fn Java_ffi_FFI_onVideoEncodedUpdate(
+    env: JNIEnv,
+    _class: JClass,
+    buffer: JObject,
+    offset: jint,
+    size: jint,
+    pts_us: jlong,
+    flags: jint,
+) -> jboolean {
     let jb = JByteBuffer::from(buffer);
     if let Ok(data) = env.get_direct_buffer_address(&jb) {
         if let Ok(len) = env.get_direct_buffer_capacity(&jb) {
-            VIDEO_RAW.lock().unwrap().update(data, len);
+            let (offset, size) = (offset.max(0) as usize, size.max(0) as usize);
+            if size == 0 || offset + size > len {
+                return 0;
+            }
+            let data = unsafe { std::slice::from_raw_parts(data.add(offset), size) };
+            let res = VIDEO_ENCODED.lock().unwrap().push(data, pts_us, flags);
+            VIDEO_ENCODED_PUSHED.notify_all();
+            return res as _;
         }
     }
+    0
 }
 
 #[no_mangle]
@@ -138,11 +530,16 @@ pub extern "system" fn Java_ffi_FFI_onAudioFrameUpdate(
     env: JNIEnv,
     _class: JClass,
     buffer: JObject,
+    timestamp: jlong,
 ) {
     let jb = JByteBuffer::from(buffer);
     if let Ok(data) = env.get_direct_buffer_address(&jb) {
         if let Ok(len) = env.get_direct_buffer_capacity(&jb) {
-            AUDIO_RAW.lock().unwrap().update(data, len);
+            let desc = FrameDesc {
+                timestamp,
+                ..Default::default()
+            };
+            AUDIO_RAW.lock().unwrap().update(data, len, desc);
         }
     }
 }
@@ -180,7 +577,19 @@ pub extern "system" fn Java_ffi_FFI_setFrameRawEnable(
         let name: String = name.into();
         let value = value.eq(&1);
         if name.eq("video") {
-            VIDEO_RAW.lock().unwrap().set_enable(value);
+            let mut ring = VIDEO_RING.lock().unwrap();
+            ring.set_enable(value);
+            VIDEO_RING_PUBLISHED.notify_all();
+            if !value && ring.has_acquired() {
+                let (ring, res) = VIDEO_RING_RELEASED
+                    .wait_timeout_while(ring, MAX_VIDEO_RELEASE_WAIT, |r| r.has_acquired())
+                    .unwrap();
+                drop(ring);
+                if res.timed_out() {
+                    // the held slots are retired, the producer keeps them until they are released
+                    log::error!("Timeout waiting for the video frame to be released");
+                }
+            }
         } else if name.eq("audio") {
             AUDIO_RAW.lock().unwrap().set_enable(value);
         }
@@ -236,6 +645,8 @@ pub struct MediaCodecInfo {
     pub nv12: bool,
     #[serde(default)]
     pub low_latency: Option<bool>, // api 30+, decoder
+    #[serde(default)]
+    pub intra_refresh: Option<bool>, // encoder
     pub min_bitrate: u32,
     pub max_bitrate: u32,
     pub min_width: usize,
@@ -439,6 +850,22 @@ pub fn call_main_service_set_by_name(
     }
 }
 
+/// A snapshot of the latest captured frame, the JSON of `Snapshot.toJson` in Snapshot.kt,
+/// empty if no frame is available. `format` is "png", "jpeg" or "webp", `max_size` caps
+/// the long edge, 0 for the full size. While the capture is stopped, the virtual display
+/// renders one frame for it, which can take up to half a second.
+pub fn get_snapshot(format: &str, quality: u32, max_size: u32) -> JniResult<String> {
+    // the config and the snapshot are two calls
+    let _lock = SNAPSHOT_LOCK.lock().unwrap();
+    let config = serde_json::json!({
+        "format": format,
+        "quality": quality,
+        "max_size": max_size,
+    });
+    call_main_service_set_by_name("snapshot_config", Some(&config.to_string()), None)?;
+    call_main_service_get_by_name("snapshot")
+}
+
 // Difference between MainService, MainActivity, JNI_OnLoad:
 //  jvm is the same, ctx is differen and ctx of JNI_OnLoad is null.
 //  cpal: all three works
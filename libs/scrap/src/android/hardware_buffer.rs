@@ -0,0 +1,189 @@
+// `AHardwareBuffer` of the NDK, API 26+.
+// https://developer.android.com/ndk/reference/group/a-hardware-buffer
+//
+// The NDK build targets API 21, so the functions are resolved from libandroid.so at runtime,
+// linking them would keep librustdesk.so from loading on Android 7.
+
+use hbb_common::dlopen::symbor::Library;
+use hbb_common::libc;
+use jni::objects::JObject;
+use jni::JNIEnv;
+use lazy_static::lazy_static;
+use std::ffi::CStr;
+use std::os::raw::{c_char, c_void};
+use std::ptr;
+
+// `AHARDWAREBUFFER_USAGE_CPU_READ_OFTEN`
+const USAGE_CPU_READ_OFTEN: u64 = 3;
+const MIN_SDK: i32 = 26;
+
+#[repr(C)]
+#[derive(Debug, Default, Clone, Copy)]
+struct AHardwareBufferDesc {
+    width: u32,
+    height: u32,
+    layers: u32,
+    format: u32,
+    usage: u64,
+    stride: u32, // in pixels
+    rfu0: u32,
+    rfu1: u64,
+}
+
+type FromHardwareBuffer =
+    unsafe extern "C" fn(env: *mut jni::sys::JNIEnv, obj: jni::sys::jobject) -> *mut c_void;
+type Acquire = unsafe extern "C" fn(buffer: *mut c_void);
+type Release = unsafe extern "C" fn(buffer: *mut c_void);
+type Describe = unsafe extern "C" fn(buffer: *const c_void, desc: *mut AHardwareBufferDesc);
+type Lock = unsafe extern "C" fn(
+    buffer: *mut c_void,
+    usage: u64,
+    fence: i32,
+    rect: *const c_void,
+    address: *mut *mut c_void,
+) -> i32;
+type Unlock = unsafe extern "C" fn(buffer: *mut c_void, fence: *mut i32) -> i32;
+
+struct Api {
+    _lib: Library,
+    from_hardware_buffer: FromHardwareBuffer,
+    acquire: Acquire,
+    release: Release,
+    describe: Describe,
+    lock: Lock,
+    unlock: Unlock,
+}
+
+impl Api {
+    fn load() -> Option<Self> {
+        let sdk = sdk_version();
+        if sdk < MIN_SDK {
+            log::info!("No AHardwareBuffer on SDK {sdk}");
+            return None;
+        }
+        let lib = Library::open("libandroid.so")
+            .map_err(|e| log::error!("Failed to load libandroid.so, {e}"))
+            .ok()?;
+        macro_rules! symbol {
+            ($name:literal) => {
+                match unsafe { lib.symbol($name) } {
+                    Ok(f) => *f,
+                    Err(e) => {
+                        log::error!("Failed to load {}, {}", $name, e);
+                        return None;
+                    }
+                }
+            };
+        }
+        let from_hardware_buffer: FromHardwareBuffer = symbol!("AHardwareBuffer_fromHardwareBuffer");
+        let acquire: Acquire = symbol!("AHardwareBuffer_acquire");
+        let release: Release = symbol!("AHardwareBuffer_release");
+        let describe: Describe = symbol!("AHardwareBuffer_describe");
+        let lock: Lock = symbol!("AHardwareBuffer_lock");
+        let unlock: Unlock = symbol!("AHardwareBuffer_unlock");
+        Some(Self {
+            _lib: lib,
+            from_hardware_buffer,
+            acquire,
+            release,
+            describe,
+            lock,
+            unlock,
+        })
+    }
+}
+
+lazy_static! {
+    static ref API: Option<Api> = Api::load();
+}
+
+// `Build.VERSION.SDK_INT`, `android_get_device_api_level` is API 29+.
+fn sdk_version() -> i32 {
+    let mut value = [0 as c_char; 92]; // `PROP_VALUE_MAX`
+    unsafe {
+        if libc::__system_property_get(b"ro.build.version.sdk\0".as_ptr() as _, value.as_mut_ptr())
+            <= 0
+        {
+            return 0;
+        }
+        CStr::from_ptr(value.as_ptr())
+            .to_str()
+            .ok()
+            .and_then(|s| s.parse().ok())
+            .unwrap_or(0)
+    }
+}
+
+/// A `HardwareBuffer` of a captured `Image`, locked for CPU reads.
+///
+/// The buffer holds its own reference, so it stays valid after the Java object is closed.
+/// Locking only maps the memory the GPU wrote, nothing is copied.
+/// The buffer is unlocked and released on drop.
+pub struct HardwareBufferLock {
+    buffer: *mut c_void,
+    ptr: *mut u8,
+    len: usize,
+    row_stride: usize, // in bytes, 4 bytes per pixel of the RGBA buffers of the `ImageReader`
+}
+
+// Safety: an `AHardwareBuffer` can be used from any thread.
+unsafe impl Send for HardwareBufferLock {}
+
+impl HardwareBufferLock {
+    /// `None` below API 26, or if the buffer cannot be locked.
+    pub fn from_java(env: &JNIEnv, obj: &JObject) -> Option<Self> {
+        let api = API.as_ref()?;
+        unsafe {
+            let buffer = (api.from_hardware_buffer)(env.get_raw(), obj.as_raw());
+            if buffer.is_null() {
+                return None;
+            }
+            let mut desc = AHardwareBufferDesc::default();
+            (api.describe)(buffer, &mut desc);
+            (api.acquire)(buffer);
+            let mut address: *mut c_void = ptr::null_mut();
+            let res = (api.lock)(buffer, USAGE_CPU_READ_OFTEN, -1, ptr::null(), &mut address);
+            if res != 0 || address.is_null() {
+                log::trace!("AHardwareBuffer_lock failed: {res}");
+                (api.release)(buffer);
+                return None;
+            }
+            let row_stride = desc.stride as usize * 4;
+            Some(Self {
+                buffer,
+                ptr: address as _,
+                len: row_stride * desc.height as usize,
+                row_stride,
+            })
+        }
+    }
+
+    pub fn ptr(&self) -> *mut u8 {
+        self.ptr
+    }
+
+    pub fn len(&self) -> usize {
+        self.len
+    }
+
+    pub fn row_stride(&self) -> usize {
+        self.row_stride
+    }
+
+    /// The `AHardwareBuffer*`, to be imported by a native encoder or GL/Vulkan.
+    pub fn as_raw(&self) -> *mut c_void {
+        self.buffer
+    }
+}
+
+impl Drop for HardwareBufferLock {
+    fn drop(&mut self) {
+        // only created once the functions are loaded
+        if let Some(api) = API.as_ref() {
+            unsafe {
+                (api.unlock)(self.buffer, ptr::null_mut());
+                (api.release)(self.buffer);
+            }
+        }
+    }
+}
@@ -1,3 +1,6 @@
+pub mod dirty;
 pub mod ffi;
+pub mod hardware_buffer;
+pub mod ring;
 
 pub use ffi::*;
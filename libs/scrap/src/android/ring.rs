@@ -0,0 +1,406 @@
+use super::ffi::FrameDesc;
+use super::hardware_buffer::HardwareBufferLock;
+use std::ops::Not;
+use std::os::raw::c_void;
+use std::time::{Duration, Instant};
+
+// Must match `VIDEO_FRAME_SLOTS` in MainService.kt.
+// The `ImageReader` is created with `VIDEO_FRAME_SLOTS + 1` max images,
+// one image is always kept free for `acquireLatestImage()`.
+pub const VIDEO_FRAME_SLOTS: usize = 3;
+
+// Flags returned to the producer with the released slots, must match MainService.kt.
+// A published frame was never consumed, superseded or timed out, the consumer is behind.
+pub const FRAME_FLAG_STALE: u64 = 1 << 32;
+// No changed frame for `IDLE_THRESHOLD`, the producer can slow down.
+pub const FRAME_FLAG_IDLE: u64 = 1 << 33;
+// A published frame was dropped because it was older than the timeout when the consumer came,
+// counted by the producer's capture stats.
+pub const FRAME_FLAG_TIMEOUT: u64 = 1 << 34;
+
+const IDLE_THRESHOLD: Duration = Duration::from_secs(2);
+
+#[derive(Debug, Clone, Copy, PartialEq, Eq)]
+enum SlotState {
+    Free,
+    Ready, // published by the producer, readable by the consumer if it has not seen it yet
+    Retired, // still held when the ring was disabled, given back once the consumer releases it
+}
+
+#[derive(Debug, Clone, Copy)]
+struct Slot {
+    state: SlotState,
+    ptr: usize, // address of the direct buffer, valid until the producer closes the `Image`
+    len: usize,
+    desc: FrameDesc,
+    seq: u64,
+    published: Instant,
+    held: bool,  // read by the consumer
+    taken: bool, // acquired at least once
+}
+
+impl Default for Slot {
+    fn default() -> Self {
+        Self {
+            state: SlotState::Free,
+            ptr: 0,
+            len: 0,
+            desc: FrameDesc::default(),
+            seq: 0,
+            published: Instant::now(),
+            held: false,
+            taken: false,
+        }
+    }
+}
+
+/// A frame borrowed from the ring, it must be passed back to [`FrameRing::release`].
+#[derive(Debug, Clone, Copy)]
+pub struct FrameRef {
+    pub slot: usize,
+    pub ptr: *const u8,
+    pub len: usize,
+    pub desc: FrameDesc,
+    pub hardware_buffer: *mut c_void, // `AHardwareBuffer*` of the pixels, null if not published with one
+}
+
+impl FrameRef {
+    // Safety: the slot must be held by the consumer, the producer does not recycle it until released.
+    pub unsafe fn data<'a>(&self) -> &'a [u8] {
+        std::slice::from_raw_parts(self.ptr, self.len)
+    }
+}
+
+/// Fixed-size ring of frames shared by the producer (Kotlin) and the consumer (rust).
+///
+/// The producer owns the memory of every slot. The consumer, the capturer of the video
+/// service, reads the latest frame in place. A slot is given back to the producer once
+/// a newer frame has been published and the consumer does not read it anymore, so the
+/// consumer never reads a recycled buffer.
+pub struct FrameRing {
+    name: &'static str,
+    slots: Vec<Slot>,
+    buffers: Vec<Option<HardwareBufferLock>>, // kept with their slot, the pixels of `Slot::ptr`
+    last_seq: u64,                            // last frame taken by the consumer
+    enable: bool,
+    timeout: Duration,
+    seq: u64,
+    released: u64, // bit mask of slots the producer may recycle, reported on next publish
+    stale: bool,
+    timed_out: bool,
+    last_changed: Instant,
+}
+
+impl FrameRing {
+    pub fn new(name: &'static str, n: usize, timeout: Duration) -> Self {
+        Self {
+            name,
+            slots: vec![Slot::default(); n],
+            buffers: (0..n).map(|_| None).collect(),
+            last_seq: 0,
+            enable: false,
+            timeout,
+            seq: 0,
+            released: 0,
+            stale: false,
+            timed_out: false,
+            last_changed: Instant::now(),
+        }
+    }
+
+    pub fn set_enable(&mut self, value: bool) {
+        self.enable = value;
+        if value {
+            // The producer has closed every image of the previous capture but the retired ones,
+            // their bits are still reported when they are released.
+            for i in 0..self.slots.len() {
+                if self.slots[i].state != SlotState::Retired {
+                    self.slots[i] = Slot::default();
+                    self.buffers[i] = None;
+                }
+            }
+        } else {
+            for i in 0..self.slots.len() {
+                if self.slots[i].state == SlotState::Ready {
+                    if !self.slots[i].held {
+                        self.free(i);
+                    } else {
+                        self.slots[i].state = SlotState::Retired;
+                    }
+                }
+            }
+            // Stale bits must not close images published after this point.
+            self.released = 0;
+        }
+        self.stale = false;
+        self.timed_out = false;
+        self.last_changed = Instant::now();
+    }
+
+    // The consumer found changed content in the latest frame.
+    pub fn mark_changed(&mut self) {
+        self.last_changed = Instant::now();
+    }
+
+    pub fn has_acquired(&self) -> bool {
+        self.slots.iter().any(|s| s.held)
+    }
+
+    // Bit mask of the slots still held since the ring was disabled, the producer must keep them.
+    pub fn retired(&self) -> u64 {
+        self.slots
+            .iter()
+            .enumerate()
+            .filter(|(_, s)| s.state == SlotState::Retired)
+            .fold(0, |mask, (i, _)| mask | 1 << i)
+    }
+
+    // Returns the slots the producer can recycle.
+    pub fn publish(&mut self, slot: usize, ptr: usize, len: usize, desc: FrameDesc) -> u64 {
+        if slot >= self.slots.len() {
+            log::error!("Invalid {} slot {}", self.name, slot);
+            return self.take_released();
+        }
+        if self.enable.not() || self.slots[slot].state != SlotState::Free {
+            self.released |= 1 << slot;
+            return self.take_released();
+        }
+        // Only the latest frame is worth encoding, older frames not being read go back to the producer.
+        for i in 0..self.slots.len() {
+            let s = self.slots[i];
+            if s.state == SlotState::Ready && !s.held {
+                self.free(i);
+                if !s.taken {
+                    self.stale = true;
+                }
+            }
+        }
+        self.seq += 1;
+        self.slots[slot] = Slot {
+            state: SlotState::Ready,
+            ptr,
+            len,
+            desc,
+            seq: self.seq,
+            published: Instant::now(),
+            held: false,
+            taken: false,
+        };
+        let mut flags = self.take_released();
+        if std::mem::replace(&mut self.stale, false) {
+            flags |= FRAME_FLAG_STALE;
+        }
+        if std::mem::replace(&mut self.timed_out, false) {
+            flags |= FRAME_FLAG_TIMEOUT;
+        }
+        if self.last_changed.elapsed() > IDLE_THRESHOLD {
+            flags |= FRAME_FLAG_IDLE;
+        }
+        flags
+    }
+
+    // Same as `publish`, the pixels are those of the locked buffer, unlocked once the slot is freed.
+    pub fn publish_hardware_buffer(
+        &mut self,
+        slot: usize,
+        buffer: HardwareBufferLock,
+        desc: FrameDesc,
+    ) -> u64 {
+        let ptr = buffer.ptr() as usize;
+        let flags = self.publish(slot, ptr, buffer.len(), desc);
+        if let Some(s) = self.slots.get(slot) {
+            if s.state == SlotState::Ready && s.ptr == ptr {
+                self.buffers[slot] = Some(buffer);
+            }
+        }
+        flags
+    }
+
+    pub fn take_released(&mut self) -> u64 {
+        std::mem::replace(&mut self.released, 0)
+    }
+
+    // The latest frame the consumer has not seen yet.
+    pub fn acquire(&mut self) -> Option<FrameRef> {
+        if self.enable.not() {
+            return None;
+        }
+        let last_seq = self.last_seq;
+        let (i, slot) = self
+            .slots
+            .iter()
+            .enumerate()
+            .filter(|(_, s)| s.state == SlotState::Ready && !s.held && s.seq > last_seq)
+            .max_by_key(|(_, s)| s.seq)
+            .map(|(i, s)| (i, *s))?;
+        // the capture time includes the producer's delay, the publish time is a fallback
+        let age = slot
+            .desc
+            .capture_age()
+            .unwrap_or_else(|| slot.published.elapsed());
+        if age > self.timeout {
+            log::trace!("Failed to take {} frame, timeout!", self.name);
+            self.free(i);
+            if !slot.taken {
+                self.stale = true;
+                self.timed_out = true;
+            }
+            return None;
+        }
+        self.slots[i].held = true;
+        self.slots[i].taken = true;
+        self.last_seq = slot.seq;
+        Some(FrameRef {
+            slot: i,
+            ptr: slot.ptr as _,
+            len: slot.len,
+            desc: slot.desc,
+            hardware_buffer: self.buffers[i]
+                .as_ref()
+                .map_or(std::ptr::null_mut(), |b| b.as_raw()),
+        })
+    }
+
+    // The latest frame stays readable until a newer one is published.
+    pub fn release(&mut self, slot: usize) {
+        let Some(s) = self.slots.get_mut(slot) else {
+            return;
+        };
+        if s.state == SlotState::Free || !s.held {
+            return;
+        }
+        s.held = false;
+        if s.state == SlotState::Retired || self.enable.not() || s.seq != self.seq {
+            self.free(slot);
+        }
+    }
+
+    fn free(&mut self, slot: usize) {
+        self.slots[slot] = Slot::default();
+        self.buffers[slot] = None;
+        self.released |= 1 << slot;
+    }
+}
+
+#[cfg(test)]
+mod tests {
+    use super::*;
+
+    const SLOTS_MASK: u64 = 0xFFFF_FFFF;
+
+    fn ring() -> FrameRing {
+        let mut ring = FrameRing::new("test", VIDEO_FRAME_SLOTS, Duration::from_secs(1));
+        ring.set_enable(true);
+        ring
+    }
+
+    fn publish(ring: &mut FrameRing, slot: usize) -> u64 {
+        ring.publish(slot, 0x1000 * (slot + 1), 16, FrameDesc::default())
+    }
+
+    #[test]
+    fn acquire_takes_the_latest_frame_once() {
+        let mut ring = ring();
+        assert_eq!(publish(&mut ring, 0), 0);
+        let frame = ring.acquire().unwrap();
+        assert_eq!(frame.slot, 0);
+        assert_eq!(frame.ptr as usize, 0x1000);
+        assert!(ring.acquire().is_none());
+        // the latest frame stays readable until a newer one is published
+        ring.release(0);
+        assert_eq!(ring.take_released(), 0);
+        assert_eq!(publish(&mut ring, 1), 1 << 0);
+        assert_eq!(ring.acquire().unwrap().slot, 1);
+    }
+
+    #[test]
+    fn held_frame_is_released_after_a_newer_one() {
+        let mut ring = ring();
+        publish(&mut ring, 0);
+        ring.acquire().unwrap();
+        assert_eq!(publish(&mut ring, 1) & SLOTS_MASK, 0);
+        assert!(ring.has_acquired());
+        ring.release(0);
+        assert!(!ring.has_acquired());
+        assert_eq!(ring.take_released(), 1 << 0);
+        // reported once
+        assert_eq!(ring.take_released(), 0);
+        ring.release(0);
+        assert_eq!(ring.take_released(), 0);
+    }
+
+    #[test]
+    fn superseded_frame_is_stale() {
+        let mut ring = ring();
+        publish(&mut ring, 0);
+        assert_eq!(publish(&mut ring, 1), FRAME_FLAG_STALE | 1 << 0);
+        // the flag is reported once
+        ring.acquire().unwrap();
+        assert_eq!(publish(&mut ring, 2) & FRAME_FLAG_STALE, 0);
+    }
+
+    #[test]
+    fn timed_out_frame_is_dropped() {
+        let mut ring = ring();
+        publish(&mut ring, 0);
+        ring.slots[0].published = Instant::now() - Duration::from_secs(2);
+        assert!(ring.acquire().is_none());
+        assert_eq!(publish(&mut ring, 1), FRAME_FLAG_STALE | FRAME_FLAG_TIMEOUT | 1 << 0);
+        // the timeout is reported once, the unread frame 1 is only stale
+        let flags = publish(&mut ring, 2);
+        assert_eq!(flags & (FRAME_FLAG_TIMEOUT | FRAME_FLAG_STALE), FRAME_FLAG_STALE);
+    }
+
+    #[test]
+    fn idle_until_marked_changed() {
+        let mut ring = ring();
+        assert_eq!(publish(&mut ring, 0) & FRAME_FLAG_IDLE, 0);
+        ring.last_changed = Instant::now() - IDLE_THRESHOLD - Duration::from_millis(1);
+        ring.acquire().unwrap();
+        assert_ne!(publish(&mut ring, 1) & FRAME_FLAG_IDLE, 0);
+        ring.mark_changed();
+        ring.release(0);
+        assert_eq!(publish(&mut ring, 2) & FRAME_FLAG_IDLE, 0);
+    }
+
+    #[test]
+    fn disable_gives_back_unheld_frames() {
+        let mut ring = ring();
+        publish(&mut ring, 0);
+        ring.set_enable(false);
+        // the producer closes them without the released bits
+        assert_eq!(ring.retired(), 0);
+        assert_eq!(ring.take_released(), 0);
+        assert!(ring.acquire().is_none());
+        assert_eq!(publish(&mut ring, 1), 1 << 1);
+    }
+
+    #[test]
+    fn held_frame_is_retired_until_released() {
+        let mut ring = ring();
+        publish(&mut ring, 0);
+        ring.acquire().unwrap();
+        publish(&mut ring, 1);
+        ring.set_enable(false);
+        assert_eq!(ring.retired(), 1 << 0);
+        assert_eq!(ring.take_released(), 0);
+        ring.set_enable(true);
+        assert_eq!(ring.retired(), 1 << 0);
+        // the slots of the new capture work meanwhile, the retired one is not acquired again
+        publish(&mut ring, 1);
+        assert_eq!(ring.acquire().unwrap().slot, 1);
+        ring.release(0);
+        assert_eq!(ring.retired(), 0);
+        assert_eq!(ring.take_released(), 1 << 0);
+    }
+
+    #[test]
+    fn busy_or_invalid_slot_is_rejected() {
+        let mut ring = ring();
+        publish(&mut ring, 0);
+        assert_eq!(publish(&mut ring, 0), 1 << 0);
+        assert_eq!(publish(&mut ring, VIDEO_FRAME_SLOTS) & SLOTS_MASK, 0);
+        assert_eq!(ring.acquire().unwrap().slot, 0);
+        ring.release(VIDEO_FRAME_SLOTS);
+    }
+}
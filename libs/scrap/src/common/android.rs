@@ -1,8 +1,13 @@
-use crate::android::ffi::*;
+use crate::android::{
+    dirty::FrameHasher,
+    ffi::*,
+    ring::FrameRef,
+};
 use crate::{Frame, Pixfmt};
 use lazy_static::lazy_static;
 use serde_json::Value;
 use std::collections::HashMap;
+use std::ffi::c_void;
 use std::sync::Mutex;
 use std::{io, time::Duration};
 
@@ -12,16 +17,18 @@ lazy_static! {
 
 pub struct Capturer {
     display: Display,
-    rgba: Vec<u8>,
-    saved_raw_data: Vec<u8>, // for faster compare and copy
+    frame: Option<FrameRef>, // acquired from the ring, released on the next `frame()` call
+    frames: FrameHasher, // hash of the last frame taken
+    encoded: Vec<EncodedUnit>, // passed to `SurfaceEncoder` as the texture of `Frame::Texture`
 }
 
 impl Capturer {
     pub fn new(display: Display) -> io::Result<Capturer> {
         Ok(Capturer {
             display,
-            rgba: Vec::new(),
-            saved_raw_data: Vec::new(),
+            frame: None,
+            frames: FrameHasher::new(),
+            encoded: Vec::new(),
         })
     }
 
@@ -32,19 +39,64 @@ impl Capturer {
     pub fn height(&self) -> usize {
         self.display.height() as usize
     }
+
+    fn release(&mut self) {
+        if let Some(frame) = self.frame.take() {
+            release_video_frame(frame.slot);
+        }
+    }
+}
+
+impl Drop for Capturer {
+    fn drop(&mut self) {
+        self.release();
+    }
 }
 
 impl crate::TraitCapturer for Capturer {
-    fn frame<'a>(&'a mut self, _timeout: Duration) -> io::Result<Frame<'a>> {
-        if get_video_raw(&mut self.rgba, &mut self.saved_raw_data).is_some() {
-            Ok(Frame::PixelBuffer(PixelBuffer::new(
-                &self.rgba,
-                self.width(),
-                self.height(),
-            )))
-        } else {
+    // Up to `timeout`, the frame interval of the caller, is spent waiting for the producer,
+    // so a frame is returned as soon as it is published instead of on the caller's next tick.
+    fn frame<'a>(&'a mut self, timeout: Duration) -> io::Result<Frame<'a>> {
+        // The previous frame has been encoded when we are called again.
+        self.release();
+        // The surface encoder has already encoded the screen, no pixels to read.
+        if let Some(n) = take_video_encoded(&mut self.encoded, timeout) {
+            if n == 0 {
+                return Err(io::ErrorKind::WouldBlock.into());
+            }
+            if let Some(unit) = self.encoded.last() {
+                // the surface timestamp of the last access unit, in ms
+                on_video_frame_captured(unit.pts * 1_000_000);
+            }
+            let units = &mut self.encoded as *mut Vec<EncodedUnit> as *mut c_void;
+            return Ok(Frame::Texture((units, 0)));
+        }
+        let Some(frame) = acquire_video_frame(timeout) else {
+            return Err(io::ErrorKind::WouldBlock.into());
+        };
+        self.frame = Some(frame);
+        // Safety: the slot stays acquired until `self.release()`, which needs `&mut self`.
+        let data = unsafe { frame.data() };
+        let desc = frame.desc;
+        // The capture size can change without restarting the capture,
+        // frames of the other size are dropped until the display is refreshed.
+        if desc.width != self.width() || desc.height != self.height() {
+            self.release();
             return Err(io::ErrorKind::WouldBlock.into());
         }
+        // Static frames are dropped here, before anything is copied or converted.
+        // For I420 the chroma planes are hashed too.
+        if !self.frames.update(data, &desc) {
+            self.release();
+            return Err(io::ErrorKind::WouldBlock.into());
+        }
+        mark_video_frame_changed();
+        on_video_frame_captured(desc.timestamp);
+        let pixelbuffer = match desc.format {
+            FrameFormat::Rgba => PixelBuffer::new(data, desc.width, desc.height, desc.row_stride),
+            FrameFormat::I420 => PixelBuffer::with_i420(data, &desc),
+        };
+        Ok(Frame::PixelBuffer(pixelbuffer))
     }
 }
 
@@ -53,11 +105,13 @@ pub struct PixelBuffer<'a> {
     width: usize,
     height: usize,
     stride: Vec<usize>,
+    offsets: Vec<usize>,
+    pixfmt: Pixfmt,
 }
 
 impl<'a> PixelBuffer<'a> {
-    pub fn new(data: &'a [u8], width: usize, height: usize) -> Self {
-        let stride0 = data.len() / height;
+    // `stride0` is the real row stride of the image plane, rows may be padded.
+    pub fn new(data: &'a [u8], width: usize, height: usize, stride0: usize) -> Self {
         let mut stride = Vec::new();
         stride.push(stride0);
         PixelBuffer {
@@ -65,6 +119,20 @@ impl<'a> PixelBuffer<'a> {
             width,
             height,
             stride,
+            offsets: vec![0],
+            pixfmt: Pixfmt::RGBA,
+        }
+    }
+
+    // The planes are packed by the producer, see `FrameFormat::I420`.
+    pub fn with_i420(data: &'a [u8], desc: &FrameDesc) -> Self {
+        PixelBuffer {
+            data,
+            width: desc.width,
+            height: desc.height,
+            stride: vec![desc.row_stride; 3],
+            offsets: desc.i420_offsets().to_vec(),
+            pixfmt: Pixfmt::I420,
         }
     }
 }
@@ -87,7 +155,11 @@ impl<'a> crate::TraitPixelBuffer for PixelBuffer<'a> {
     }
 
     fn pixfmt(&self) -> Pixfmt {
-        Pixfmt::RGBA
+        self.pixfmt
+    }
+
+    fn offsets(&self) -> Vec<usize> {
+        self.offsets.clone()
     }
 }
 
@@ -9,6 +9,8 @@ use std::{
 use crate::hwcodec::*;
 #[cfg(feature = "mediacodec")]
 use crate::mediacodec::{MediaCodecDecoder, H264_DECODER_SUPPORT, H265_DECODER_SUPPORT};
+#[cfg(target_os = "android")]
+use crate::surface::*;
 #[cfg(feature = "vram")]
 use crate::vram::*;
 use crate::{
@@ -55,6 +57,8 @@ pub enum EncoderCfg {
     HWRAM(HwRamEncoderConfig),
     #[cfg(feature = "vram")]
     VRAM(VRamEncoderConfig),
+    #[cfg(target_os = "android")]
+    SURFACE(SurfaceEncoderConfig),
 }
 
 pub trait EncoderApi {
@@ -165,6 +169,17 @@ impl Encoder {
                     Err(e)
                 }
             },
+            #[cfg(target_os = "android")]
+            EncoderCfg::SURFACE(_) => match SurfaceEncoder::new(config, i444) {
+                Ok(surface) => Ok(Encoder {
+                    codec: Box::new(surface),
+                }),
+                Err(e) => {
+                    log::error!("new surface encoder failed: {e:?}");
+                    *ENCODE_CODEC_FORMAT.lock().unwrap() = CodecFormat::VP9;
+                    Err(e)
+                }
+            },
         }
     }
 
@@ -392,6 +407,8 @@ impl Encoder {
                     return;
                 }
             },
+            #[cfg(target_os = "android")]
+            EncoderCfg::SURFACE(surface) => surface.format,
         };
         let current = ENCODE_CODEC_FORMAT.lock().unwrap().clone();
         if current != format {
@@ -415,6 +432,8 @@ impl Encoder {
             EncoderCfg::HWRAM(_) => false,
             #[cfg(feature = "vram")]
             EncoderCfg::VRAM(_) => false,
+            #[cfg(target_os = "android")]
+            EncoderCfg::SURFACE(_) => false,
         };
         prefer_i444 && i444_useable && !decodings.is_empty()
     }
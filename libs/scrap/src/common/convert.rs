@@ -44,15 +44,25 @@ pub fn convert_to_yuv(
                 src_width * src_pixfmt.bytes_per_pixel()
             );
         }
-        if src.len() < src_stride[0] * src_height {
+        // The last row may not be padded, e.g. `Image.Plane` buffers on Android.
+        let min_len = src_stride[0] * src_height.saturating_sub(1)
+            + src_width * src_pixfmt.bytes_per_pixel();
+        if src.len() < min_len {
             bail!(
-                "wrong src len, {} < {} * {}",
+                "wrong src len, {} < {} * ({} - 1) + {} * {}",
                 src.len(),
                 src_stride[0],
-                src_height
+                src_height,
+                src_width,
+                src_pixfmt.bytes_per_pixel()
             );
         }
     }
+    let src_planes = if src_pixfmt == crate::Pixfmt::I420 {
+        i420_planes(captured)?
+    } else {
+        [std::ptr::null(); 3]
+    };
     let align = |x: usize| (x + 63) / 64 * 64;
     let unsupported = format!(
         "unsupported pixfmt conversion: {src_pixfmt:?} -> {:?}",
@@ -60,6 +70,83 @@ pub fn convert_to_yuv(
     );
 
     match (src_pixfmt, dst_fmt.pixfmt) {
+        (crate::Pixfmt::I420, crate::Pixfmt::I420) => {
+            let dst_stride_y = dst_fmt.stride[0];
+            let dst_stride_uv = dst_fmt.stride[1];
+            dst.resize(dst_fmt.h * dst_stride_y * 2, 0); // waste some memory to ensure memory safety
+            let dst_y = dst.as_mut_ptr();
+            let dst_u = dst[dst_fmt.u..].as_mut_ptr();
+            let dst_v = dst[dst_fmt.v..].as_mut_ptr();
+            call_yuv!(I420Copy(
+                src_planes[0],
+                src_stride[0] as _,
+                src_planes[1],
+                src_stride[1] as _,
+                src_planes[2],
+                src_stride[2] as _,
+                dst_y,
+                dst_stride_y as _,
+                dst_u,
+                dst_stride_uv as _,
+                dst_v,
+                dst_stride_uv as _,
+                src_width as _,
+                src_height as _,
+            ));
+        }
+        (crate::Pixfmt::I420, crate::Pixfmt::NV12) => {
+            let dst_stride_y = dst_fmt.stride[0];
+            let dst_stride_uv = dst_fmt.stride[1];
+            dst.resize(
+                align(dst_fmt.h) * (align(dst_stride_y) + align(dst_stride_uv / 2)),
+                0,
+            );
+            let dst_y = dst.as_mut_ptr();
+            let dst_uv = dst[dst_fmt.u..].as_mut_ptr();
+            call_yuv!(I420ToNV12(
+                src_planes[0],
+                src_stride[0] as _,
+                src_planes[1],
+                src_stride[1] as _,
+                src_planes[2],
+                src_stride[2] as _,
+                dst_y,
+                dst_stride_y as _,
+                dst_uv,
+                dst_stride_uv as _,
+                src_width as _,
+                src_height as _,
+            ));
+        }
+        (crate::Pixfmt::I420, crate::Pixfmt::I444) => {
+            let dst_stride_y = dst_fmt.stride[0];
+            let dst_stride_u = dst_fmt.stride[1];
+            let dst_stride_v = dst_fmt.stride[2];
+            dst.resize(
+                align(dst_fmt.h)
+                    * (align(dst_stride_y) + align(dst_stride_u) + align(dst_stride_v)),
+                0,
+            );
+            let dst_y = dst.as_mut_ptr();
+            let dst_u = dst[dst_fmt.u..].as_mut_ptr();
+            let dst_v = dst[dst_fmt.v..].as_mut_ptr();
+            call_yuv!(I420ToI444(
+                src_planes[0],
+                src_stride[0] as _,
+                src_planes[1],
+                src_stride[1] as _,
+                src_planes[2],
+                src_stride[2] as _,
+                dst_y,
+                dst_stride_y as _,
+                dst_u,
+                dst_stride_u as _,
+                dst_v,
+                dst_stride_v as _,
+                src_width as _,
+                src_height as _,
+            ));
+        }
         (crate::Pixfmt::BGRA, crate::Pixfmt::I420)
         | (crate::Pixfmt::RGBA, crate::Pixfmt::I420)
         | (crate::Pixfmt::RGB565LE, crate::Pixfmt::I420) => {
@@ -198,6 +285,31 @@ pub fn convert_to_yuv(
     Ok(())
 }
 
+// Pointers to the Y, U and V planes of an I420 buffer, checked against its length.
+#[cfg(not(target_os = "ios"))]
+fn i420_planes(captured: &PixelBuffer) -> ResultType<[*const u8; 3]> {
+    let src = captured.data();
+    let stride = captured.stride();
+    let offsets = captured.offsets();
+    if stride.len() < 3 || offsets.len() < 3 {
+        bail!("i420 needs 3 planes, stride: {stride:?}, offsets: {offsets:?}");
+    }
+    let (w, h) = (captured.width(), captured.height());
+    let mut planes = [std::ptr::null(); 3];
+    for i in 0..3 {
+        let (pw, ph) = if i == 0 { (w, h) } else { ((w + 1) / 2, (h + 1) / 2) };
+        if stride[i] < pw {
+            bail!("src_stride too small: {} < {pw}, plane {i}", stride[i]);
+        }
+        let end = offsets[i] + stride[i] * ph.saturating_sub(1) + pw;
+        if src.len() < end {
+            bail!("wrong src len, {} < {end}, plane {i}", src.len());
+        }
+        planes[i] = src[offsets[i]..].as_ptr();
+    }
+    Ok(planes)
+}
+
 #[cfg(not(target_os = "ios"))]
 pub fn convert(captured: &PixelBuffer, pixfmt: crate::Pixfmt, dst: &mut Vec<u8>) -> ResultType<()> {
     if captured.pixfmt() == pixfmt {
@@ -217,6 +329,27 @@ pub fn convert(captured: &PixelBuffer, pixfmt: crate::Pixfmt, dst: &mut Vec<u8>)
     );
 
     match (src_pixfmt, pixfmt) {
+        (crate::Pixfmt::I420, crate::Pixfmt::RGBA) | (crate::Pixfmt::I420, crate::Pixfmt::BGRA) => {
+            let planes = i420_planes(captured)?;
+            let dst_stride = src_width * 4;
+            dst.resize(dst_stride * src_height, 0);
+            let f = match pixfmt {
+                crate::Pixfmt::RGBA => I420ToABGR,
+                _ => I420ToARGB,
+            };
+            call_yuv!(f(
+                planes[0],
+                src_stride[0] as _,
+                planes[1],
+                src_stride[1] as _,
+                planes[2],
+                src_stride[2] as _,
+                dst.as_mut_ptr(),
+                dst_stride as _,
+                src_width as _,
+                src_height as _,
+            ));
+        }
         (crate::Pixfmt::BGRA, crate::Pixfmt::RGBA) | (crate::Pixfmt::RGBA, crate::Pixfmt::BGRA) => {
             dst.resize(src.len(), 0);
             call_yuv!(ABGRToARGB(
@@ -41,6 +41,8 @@ pub mod convert;
 pub mod hwcodec;
 #[cfg(feature = "mediacodec")]
 pub mod mediacodec;
+#[cfg(target_os = "android")]
+pub mod surface;
 pub mod vpxcodec;
 #[cfg(feature = "vram")]
 pub mod vram;
@@ -170,6 +172,11 @@ pub trait TraitPixelBuffer {
     fn stride(&self) -> Vec<usize>;
 
     fn pixfmt(&self) -> Pixfmt;
+
+    // Byte offset of each plane in `data()`, in the order of `stride()`.
+    fn offsets(&self) -> Vec<usize> {
+        vec![0]
+    }
 }
 
 #[cfg(not(any(target_os = "ios")))]
@@ -0,0 +1,279 @@
+use std::sync::atomic::{AtomicBool, Ordering};
+
+use crate::{
+    android::ffi::{
+        call_main_service_get_by_name, call_main_service_set_by_name, enable_video_encoded,
+        get_codec_info, EncodedUnit, MediaCodecInfo,
+    },
+    codec::{base_bitrate, EncoderApi, EncoderCfg},
+    CodecFormat, EncodeInput, EncodeYuvFormat, Pixfmt,
+};
+use hbb_common::{
+    anyhow::{anyhow, bail},
+    bytes::Bytes,
+    config::{keys, option2bool, Config},
+    log,
+    message_proto::{EncodedVideoFrame, EncodedVideoFrames, VideoFrame},
+    serde_json, ResultType,
+};
+
+// The virtual display renders into the input surface of a MediaCodec encoder,
+// the encoded access units are passed to rust by `FFI.onVideoEncodedUpdate`.
+// No pixel is read back or converted on the CPU.
+
+static NOT_USE: AtomicBool = AtomicBool::new(false);
+static DISABLED: AtomicBool = AtomicBool::new(false);
+
+const FRAMERATE: u32 = 30;
+// MediaCodec takes the key frame interval in seconds.
+const KEYFRAME_INTERVAL_SECS: usize = 60;
+// Segments of the recordings muxed by SessionRecorder.kt.
+const RECORD_SEGMENT_MAX_MB: u32 = 256;
+const RECORD_SEGMENT_MAX_SECS: u32 = 30 * 60;
+// Frames to refresh the whole picture in, instead of a key frame burst on a lossy link.
+const INTRA_REFRESH_PERIOD: u32 = FRAMERATE;
+
+#[derive(Debug, Clone)]
+pub struct SurfaceEncoderConfig {
+    pub format: CodecFormat,
+    pub mc_name: String,
+    pub width: usize,
+    pub height: usize,
+    pub quality: f32,
+    pub keyframe_interval: Option<usize>,
+}
+
+pub struct SurfaceEncoder {
+    config: SurfaceEncoderConfig,
+    bitrate: u32,
+}
+
+impl EncoderApi for SurfaceEncoder {
+    fn new(cfg: EncoderCfg, _i444: bool) -> ResultType<Self>
+    where
+        Self: Sized,
+    {
+        match cfg {
+            EncoderCfg::SURFACE(config) => {
+                let bitrate = Self::bitrate(&config, config.quality);
+                let gop = config
+                    .keyframe_interval
+                    .map(|n| (n / FRAMERATE as usize).max(1))
+                    .unwrap_or(KEYFRAME_INTERVAL_SECS);
+                let intra_refresh = get_codec_info()
+                    .and_then(|info| {
+                        info.codecs
+                            .into_iter()
+                            .find(|c| c.name == config.mc_name && c.is_encoder)
+                    })
+                    .and_then(|c| c.intra_refresh)
+                    .unwrap_or(false);
+                // The realtime options are dropped by MainService if the codec rejects them.
+                let arg = serde_json::json!({
+                    "mime": get_mime_type(config.format),
+                    "name": config.mc_name,
+                    "bitrate": bitrate,
+                    "fps": FRAMERATE,
+                    "gop": gop,
+                    "low_latency": true,
+                    "intra_refresh": if intra_refresh { INTRA_REFRESH_PERIOD } else { 0 },
+                });
+                // Enable before the encoder starts, the first key frame must not be dropped.
+                enable_video_encoded(true);
+                call_main_service_set_by_name("start_surface_encoder", Some(&arg.to_string()), None)
+                    .ok();
+                let name = call_main_service_get_by_name("surface_encoder").unwrap_or_default();
+                if name != config.mc_name {
+                    enable_video_encoded(false);
+                    bail!("Failed to start surface encoder {}", config.mc_name);
+                }
+                Ok(SurfaceEncoder { config, bitrate })
+            }
+            _ => Err(anyhow!("encoder type mismatch")),
+        }
+    }
+
+    fn encode_to_message(&mut self, input: EncodeInput, _ms: i64) -> ResultType<VideoFrame> {
+        let (texture, _) = input.texture()?;
+        if texture.is_null() {
+            bail!("no encoded units");
+        }
+        // Safety: the texture is `Capturer::encoded`, which is not touched until the next `frame()`.
+        let units = unsafe { &*(texture as *const Vec<EncodedUnit>) };
+        let frames: Vec<_> = units
+            .iter()
+            .map(|u| EncodedVideoFrame {
+                data: Bytes::from(u.data.clone()),
+                pts: u.pts,
+                key: u.key,
+                ..Default::default()
+            })
+            .collect();
+        if frames.is_empty() {
+            return Err(anyhow!("no valid frame"));
+        }
+        let frames = EncodedVideoFrames {
+            frames: frames.into(),
+            ..Default::default()
+        };
+        let mut vf = VideoFrame::new();
+        match self.config.format {
+            CodecFormat::H264 => vf.set_h264s(frames),
+            CodecFormat::H265 => vf.set_h265s(frames),
+            CodecFormat::VP9 => vf.set_vp9s(frames),
+            _ => bail!("unsupported format: {:?}", self.config.format),
+        }
+        Ok(vf)
+    }
+
+    fn yuvfmt(&self) -> EncodeYuvFormat {
+        // useless
+        EncodeYuvFormat {
+            pixfmt: Pixfmt::RGBA,
+            w: self.config.width,
+            h: self.config.height,
+            stride: Vec::new(),
+            u: 0,
+            v: 0,
+        }
+    }
+
+    fn set_quality(&mut self, ratio: f32) -> ResultType<()> {
+        let bitrate = Self::bitrate(&self.config, ratio);
+        if bitrate > 0 && bitrate != self.bitrate {
+            call_main_service_set_by_name(
+                "surface_encoder_bitrate",
+                Some(&bitrate.to_string()),
+                None,
+            )?;
+            self.bitrate = bitrate;
+        }
+        Ok(())
+    }
+
+    fn bitrate(&self) -> u32 {
+        self.bitrate
+    }
+
+    fn support_changing_quality(&self) -> bool {
+        true
+    }
+
+    fn latency_free(&self) -> bool {
+        true
+    }
+
+    fn is_hardware(&self) -> bool {
+        true
+    }
+
+    fn disable(&self) {
+        log::info!("disable surface encoder");
+        DISABLED.store(true, Ordering::SeqCst);
+    }
+}
+
+impl Drop for SurfaceEncoder {
+    fn drop(&mut self) {
+        call_main_service_set_by_name("stop_recording", None, None).ok();
+        enable_video_encoded(false);
+        call_main_service_set_by_name("stop_surface_encoder", None, None).ok();
+    }
+}
+
+impl SurfaceEncoder {
+    pub fn try_get(format: CodecFormat) -> Option<MediaCodecInfo> {
+        use keys::{OPTION_ALLOW_ANDROID_SURFACE_ENCODING, OPTION_ENABLE_HWCODEC};
+
+        if NOT_USE.load(Ordering::SeqCst) || DISABLED.load(Ordering::SeqCst) {
+            return None;
+        }
+        if !option2bool(
+            OPTION_ENABLE_HWCODEC,
+            &Config::get_option(OPTION_ENABLE_HWCODEC),
+        ) || !option2bool(
+            OPTION_ALLOW_ANDROID_SURFACE_ENCODING,
+            &Config::get_option(OPTION_ALLOW_ANDROID_SURFACE_ENCODING),
+        ) {
+            return None;
+        }
+        let mime = get_mime_type(format);
+        if mime.is_empty() {
+            return None;
+        }
+        let info = get_codec_info()?;
+        // Encoder's max_height and max_width are interchangeable
+        let (w, h) = (info.w.max(info.h), info.w.min(info.h));
+        info.codecs.into_iter().find(|c| {
+            c.is_encoder
+                && c.hw == Some(true)
+                && c.surface
+                && c.mime_type == mime
+                && w <= c.max_width.max(c.max_height)
+                && h <= c.max_width.min(c.max_height)
+        })
+    }
+
+    // The access units are muxed on the Java side while this encoder runs,
+    // instead of being passed to a rust `Recorder`. Named like the files of `Recorder`.
+    pub fn start_recording(dir: &str, id: &str, display_idx: usize, format: CodecFormat) {
+        let arg = serde_json::json!({
+            "dir": dir,
+            "id": id,
+            "display": display_idx,
+            "codec": format.to_string().to_lowercase(),
+            "max_mb": RECORD_SEGMENT_MAX_MB,
+            "max_secs": RECORD_SEGMENT_MAX_SECS,
+        });
+        call_main_service_set_by_name("start_recording", Some(&arg.to_string()), None).ok();
+    }
+
+    // The decoder can recover from the next key frame, the running encoder is kept.
+    pub fn request_sync_frame() -> bool {
+        call_main_service_set_by_name("surface_encoder_sync_frame", None, None).is_ok()
+    }
+
+    // Screenshots need the pixels, the surface encoder is not used until it is reset.
+    pub fn set_not_use(not_use: bool) {
+        log::info!("set surface encoder not use: {not_use}");
+        NOT_USE.store(not_use, Ordering::SeqCst);
+    }
+
+    fn bitrate(config: &SurfaceEncoderConfig, ratio: f32) -> u32 {
+        let base = base_bitrate(config.width as _, config.height as _) as f32 * ratio;
+        let threshold = 2000.0;
+        let decay_rate = 0.001; // 1000 * 0.001 = 1
+        // Same factor as `HwRamEncoder::calc_bitrate` on Android
+        // https://stackoverflow.com/questions/26110337/what-are-valid-bit-rates-to-set-for-mediacodec?rq=3
+        let factor = if base > threshold {
+            1.0 + 4.0 / (1.0 + (base - threshold) * decay_rate)
+        } else {
+            5.0
+        };
+        Self::check_bitrate_range(&config.mc_name, (base * factor) as u32)
+    }
+
+    fn check_bitrate_range(mc_name: &str, bitrate: u32) -> u32 {
+        if let Some(info) = get_codec_info() {
+            if let Some(codec) = info
+                .codecs
+                .iter()
+                .find(|c| c.name == mc_name && c.is_encoder)
+            {
+                if codec.max_bitrate > codec.min_bitrate {
+                    return bitrate.clamp(codec.min_bitrate, codec.max_bitrate);
+                }
+            }
+        }
+        bitrate
+    }
+}
+
+fn get_mime_type(format: CodecFormat) -> &'static str {
+    match format {
+        CodecFormat::H264 => "video/avc",
+        CodecFormat::H265 => "video/hevc",
+        CodecFormat::VP9 => "video/x-vnd.on2.vp9",
+        _ => "",
+    }
+}
@@ -2968,6 +2968,16 @@ impl Connection {
                     }
                     #[cfg(not(any(target_os = "android", target_os = "ios")))]
                     Some(misc::Union::ChangeResolution(r)) => self.change_resolution(None, &r),
+                    // The screen cannot change its mode, the capture is scaled to the long edge instead.
+                    #[cfg(target_os = "android")]
+                    Some(misc::Union::ChangeResolution(r)) => {
+                        if self.keyboard {
+                            video_service::request_capture_max_size(
+                                self.inner.id(),
+                                r.width.max(r.height).max(0) as _,
+                            );
+                        }
+                    }
                     #[cfg(not(any(target_os = "android", target_os = "ios")))]
                     Some(misc::Union::ChangeDisplayResolution(dr)) => {
                         self.change_resolution(Some(dr.display as _), &dr.resolution)
@@ -3055,12 +3065,21 @@ impl Connection {
                 }
                 Some(message::Union::ScreenshotRequest(request)) => {
                     if let Some(tx) = self.inner.tx.clone() {
-                        crate::video_service::set_take_screenshot(
+                        #[cfg(target_os = "android")]
+                        crate::video_service::take_android_screenshot(
                             request.display as _,
                             request.sid.clone(),
                             tx,
                         );
-                        self.refresh_video_display(Some(request.display as usize));
+                        #[cfg(not(target_os = "android"))]
+                        {
+                            crate::video_service::set_take_screenshot(
+                                request.display as _,
+                                request.sid.clone(),
+                                tx,
+                            );
+                            self.refresh_video_display(Some(request.display as usize));
+                        }
                     }
                 }
                 Some(message::Union::TerminalAction(action)) => {
@@ -4877,6 +4896,8 @@ mod raii {
                     .lock()
                     .unwrap()
                     .on_connection_close(self.0);
+                #[cfg(target_os = "android")]
+                video_service::clear_capture_max_size(self.0);
             }
             AUTHED_CONNS.lock().unwrap().retain(|c| c.conn_id != self.0);
             let remote_count = AUTHED_CONNS
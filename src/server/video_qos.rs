@@ -25,6 +25,10 @@ adjust betwen FPS and ratio:
 
 delay:
     use delay minus RTT as the actual network delay
+
+quality level adjust (only the Android capturer has a resolution ladder):
+    3 seconds timeout => step down at once when a user stalls or network delay >= 300ms,
+    step up after ADJUST_LEVEL_UP_INTERVALS timeouts in a row with network delay < 100ms
 */
 
 // Constants
@@ -44,6 +48,10 @@ const ADJUST_RATIO_INTERVAL: usize = 3; // Adjust quality ratio every 3 seconds
 const DYNAMIC_SCREEN_THRESHOLD: usize = 2; // Allow increase quality ratio if encode more than 2 times in one second
 const DELAY_THRESHOLD_150MS: u32 = 150; // 150ms is the threshold for good network condition
 
+// Must match `QUALITY_LADDER` in MainService.kt, level 0 is the full quality
+pub const QUALITY_LEVELS: usize = 4;
+const ADJUST_LEVEL_UP_INTERVALS: usize = 3;
+
 #[derive(Default, Debug, Clone)]
 struct UserDelay {
     response_delayed: bool,
@@ -111,6 +119,8 @@ pub struct VideoQoS {
     adjust_ratio_instant: Instant,
     abr_config: bool,
     new_user_instant: Instant,
+    quality_level: usize,
+    level_up_count: usize,
 }
 
 impl Default for VideoQoS {
@@ -124,6 +134,8 @@ impl Default for VideoQoS {
             adjust_ratio_instant: Instant::now(),
             abr_config: true,
             new_user_instant: Instant::now(),
+            quality_level: 0,
+            level_up_count: 0,
         }
     }
 }
@@ -163,6 +175,11 @@ impl VideoQoS {
         self.ratio
     }
 
+    // Step of the capture quality ladder, 0 is the full quality
+    pub fn quality_level(&self) -> usize {
+        self.quality_level
+    }
+
     // Check if any user is in recording mode
     pub fn record(&self) -> bool {
         self.users.iter().any(|u| u.1.record)
@@ -371,6 +388,7 @@ impl VideoQoS {
                     d.1.send_counter = 0;
                 });
                 self.adjust_ratio(dynamic_screen);
+                self.adjust_quality_level();
             }
         } else {
             self.ratio = self.latest_quality().ratio();
@@ -507,6 +525,33 @@ impl VideoQoS {
         self.adjust_ratio_instant = Instant::now();
     }
 
+    // Bitrate and fps alone are not enough on a bad uplink, lower the capture resolution too.
+    fn adjust_quality_level(&mut self) {
+        let Some(max_delay) = self.users.iter().map(|u| u.1.delay.avg_delay()).max() else {
+            return;
+        };
+        let stalled = self.users.iter().any(|u| u.1.delay.response_delayed);
+        let old = self.quality_level;
+        if stalled || max_delay >= 300 {
+            self.level_up_count = 0;
+            self.quality_level = (self.quality_level + 1).min(QUALITY_LEVELS - 1);
+        } else if max_delay < 100 {
+            self.level_up_count += 1;
+            if self.level_up_count >= ADJUST_LEVEL_UP_INTERVALS {
+                self.level_up_count = 0;
+                self.quality_level = self.quality_level.saturating_sub(1);
+            }
+        } else {
+            self.level_up_count = 0;
+        }
+        if old != self.quality_level {
+            log::info!(
+                "quality level: {old} -> {}, max delay: {max_delay}, stalled: {stalled}",
+                self.quality_level
+            );
+        }
+    }
+
     // Adjust fps based on network delay and user response time
     fn adjust_fps(&mut self) {
         let highest_fps = self.highest_fps();
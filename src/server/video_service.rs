@@ -40,6 +40,8 @@ use hbb_common::{
 };
 #[cfg(feature = "hwcodec")]
 use scrap::hwcodec::{HwRamEncoder, HwRamEncoderConfig};
+#[cfg(target_os = "android")]
+use scrap::surface::{SurfaceEncoder, SurfaceEncoderConfig};
 #[cfg(feature = "vram")]
 use scrap::vram::{VRamEncoder, VRamEncoderConfig};
 #[cfg(not(windows))]
@@ -61,6 +63,8 @@ use std::{
 };
 
 pub const OPTION_REFRESH: &'static str = "refresh";
+#[cfg(target_os = "android")]
+const CAPTURE_STATS_INTERVAL: Duration = Duration::from_secs(10);
 
 lazy_static::lazy_static! {
     static ref FRAME_FETCHED_NOTIFIER: (UnboundedSender<(i32, Option<Instant>)>, Arc<TokioMutex<UnboundedReceiver<(i32, Option<Instant>)>>>) = {
@@ -542,6 +546,7 @@ fn run(vs: VideoService) -> ResultType<()> {
             try_broadcast_display_changed(&sp, display_idx, &c, true).ok();
             bail!(e);
         }
+        set_capture_pixfmt(encoder.yuvfmt().pixfmt);
     }
     VIDEO_QOS.lock().unwrap().store_bitrate(encoder.bitrate());
     VIDEO_QOS
@@ -554,10 +559,24 @@ fn run(vs: VideoService) -> ResultType<()> {
         sp.set_option_bool(OPTION_REFRESH, false);
     }
 
+    #[cfg(target_os = "android")]
+    if vs.source.is_monitor() {
+        set_capture_fps(VIDEO_QOS.lock().unwrap().fps());
+        set_quality_level(VIDEO_QOS.lock().unwrap().quality_level());
+        set_capture_quiet_period();
+        set_capture_max_size();
+        // Only the default display can be mirrored by the media projection, the others are logged.
+        if let Ok(displays) = scrap::android::call_main_service_get_by_name("displays") {
+            log::info!("android displays: {displays}");
+        }
+    }
+
     let mut frame_controller = VideoFrameController::new();
 
     let start = time::Instant::now();
     let mut last_check_displays = time::Instant::now();
+    #[cfg(target_os = "android")]
+    let mut last_capture_stats = time::Instant::now();
     #[cfg(windows)]
     let mut try_gdi = 1;
     #[cfg(windows)]
@@ -593,8 +612,19 @@ fn run(vs: VideoService) -> ResultType<()> {
             if vs.source.is_monitor() {
                 let _ = try_broadcast_display_changed(&sp, display_idx, &c, true);
             }
-            log::info!("switch to refresh");
-            bail!("SWITCH");
+            // Restarting MediaCodec takes much longer than a key frame, a size change switches on its own.
+            #[cfg(target_os = "android")]
+            let refreshed = matches!(encoder_cfg, EncoderCfg::SURFACE(_))
+                && SurfaceEncoder::request_sync_frame();
+            #[cfg(not(target_os = "android"))]
+            let refreshed = false;
+            if refreshed {
+                log::info!("refresh by a sync frame");
+                sp.set_option_bool(OPTION_REFRESH, false);
+            } else {
+                log::info!("switch to refresh");
+                bail!("SWITCH");
+            }
         }
         if codec_format != Encoder::negotiated_codec() {
             log::info!(
@@ -630,6 +660,15 @@ fn run(vs: VideoService) -> ResultType<()> {
                 bail!("Desktop changed");
             }
         }
+        // The capture is reconfigured in place on rotation, switch as soon as the new size is known
+        // instead of waiting for the periodic check below.
+        #[cfg(target_os = "android")]
+        if vs.source.is_monitor() {
+            let (w, h, _) = scrap::screen_size();
+            if w != 0 && h != 0 && (w as usize, h as usize) != (c.width, c.height) {
+                try_broadcast_display_changed(&sp, display_idx, &c, true)?;
+            }
+        }
         let now = time::Instant::now();
         if vs.source.is_monitor() && last_check_displays.elapsed().as_millis() > 1000 {
             last_check_displays = now;
@@ -637,6 +676,11 @@ fn run(vs: VideoService) -> ResultType<()> {
             // The previous check in `sp.is_option_true(OPTION_REFRESH)` block may be enough.
             try_broadcast_display_changed(&sp, display_idx, &c, false)?;
         }
+        #[cfg(target_os = "android")]
+        if vs.source.is_monitor() && last_capture_stats.elapsed() > CAPTURE_STATS_INTERVAL {
+            last_capture_stats = now;
+            log_capture_stats();
+        }
 
         frame_controller.reset();
 
@@ -674,6 +718,8 @@ fn run(vs: VideoService) -> ResultType<()> {
                                 } else {
                                     #[cfg(all(windows, feature = "vram"))]
                                     VRamEncoder::set_not_use(sp.name(), true);
+                                    #[cfg(target_os = "android")]
+                                    SurfaceEncoder::set_not_use(true);
                                     screenshot.restore_vram = true;
                                     SCREENSHOTS.lock().unwrap().insert(display_idx, screenshot);
                                     _raii.try_vram = false;
@@ -704,6 +750,8 @@ fn run(vs: VideoService) -> ResultType<()> {
                     )?;
                     frame_controller.set_send(now, send_conn_ids);
                     send_counter += 1;
+                    #[cfg(target_os = "android")]
+                    scrap::android::on_video_frame_sent();
                 }
                 #[cfg(windows)]
                 {
@@ -837,6 +885,10 @@ impl Drop for Raii {
         if self.try_vram {
             VRamEncoder::set_not_use(self.name.clone(), false);
         }
+        #[cfg(target_os = "android")]
+        if self.try_vram {
+            SurfaceEncoder::set_not_use(false);
+        }
         #[cfg(feature = "vram")]
         Encoder::update(scrap::codec::EncodingUpdate::Check);
         VIDEO_QOS.lock().unwrap().remove_display(&self.name);
@@ -869,9 +921,20 @@ fn setup_encoder(
     );
     Encoder::set_fallback(&encoder_cfg);
     let codec_format = Encoder::negotiated_codec();
-    let recorder = get_recorder(record_incoming, display_idx, source == VideoSource::Camera);
     let use_i444 = Encoder::use_i444(&encoder_cfg);
     let encoder = Encoder::new(encoder_cfg.clone(), use_i444)?;
+    // MediaMuxer records the surface encoder on its own thread, stopped with the encoder.
+    #[cfg(target_os = "android")]
+    if let (true, EncoderCfg::SURFACE(cfg)) = (record_incoming, &encoder_cfg) {
+        SurfaceEncoder::start_recording(
+            &crate::ui_interface::video_save_directory(false),
+            &Config::get_id(),
+            display_idx,
+            cfg.format,
+        );
+        return Ok((encoder, encoder_cfg, codec_format, use_i444, Default::default()));
+    }
+    let recorder = get_recorder(record_incoming, display_idx, source == VideoSource::Camera);
     Ok((encoder, encoder_cfg, codec_format, use_i444, recorder))
 }
 
@@ -893,6 +956,19 @@ fn get_encoder_config(
     // https://www.wowza.com/community/t/the-correct-keyframe-interval-in-obs-studio/95162
     let keyframe_interval = if record { Some(240) } else { None };
     let negotiated_codec = Encoder::negotiated_codec();
+    #[cfg(target_os = "android")]
+    if _source == VideoSource::Monitor {
+        if let Some(codec) = SurfaceEncoder::try_get(negotiated_codec) {
+            return EncoderCfg::SURFACE(SurfaceEncoderConfig {
+                format: negotiated_codec,
+                mc_name: codec.name,
+                width: c.width,
+                height: c.height,
+                quality,
+                keyframe_interval,
+            });
+        }
+    }
     match negotiated_codec {
         CodecFormat::H264 | CodecFormat::H265 => {
             #[cfg(feature = "vram")]
@@ -1025,6 +1101,143 @@ fn check_change_scale(hardware: bool) -> ResultType<()> {
     Ok(())
 }
 
+// I420 is converted on the GPU and copied as is into I420 or NV12, 60% fewer bytes than RGBA.
+// I444 would lose chroma, and the surface encoder reads no pixels.
+#[cfg(target_os = "android")]
+fn set_capture_pixfmt(encoder_pixfmt: scrap::Pixfmt) {
+    use hbb_common::config::keys::OPTION_ALLOW_ANDROID_YUV_CAPTURE as YUV;
+
+    let allow = hbb_common::config::option2bool(YUV, &Config::get_option(YUV));
+    let i420 = allow && matches!(encoder_pixfmt, scrap::Pixfmt::I420 | scrap::Pixfmt::NV12);
+    log::info!("capture pixfmt i420: {i420}, encoder pixfmt: {encoder_pixfmt:?}");
+    scrap::android::call_main_service_set_by_name(
+        "capture_pixfmt",
+        Some(if i420 { "i420" } else { "rgba" }),
+        None,
+    )
+    .ok();
+}
+
+// Let the Android capturer pace the virtual display instead of producing frames we never encode.
+// Every viewer of a display subscribes to this service and decodes the one encoded stream, so they
+// share its rate: a viewer skipping frames of an inter-frame codec could not decode the next ones.
+// Rates per viewer would take an encoder per viewer, only the capture is shared by the frame ring.
+#[cfg(target_os = "android")]
+fn set_capture_fps(fps: u32) {
+    scrap::android::call_main_service_set_by_name(
+        "set_capture_fps",
+        Some(fps.to_string().as_str()),
+        None,
+    )
+    .ok();
+}
+
+// Resolution, fps cap and bitrate step of the Android capturer, see `QUALITY_LADDER` in MainService.kt
+// The capture size changes without stopping the media projection, the service switches when it sees it.
+// Applied asynchronously by the service, the capturer's frame is still held here.
+#[cfg(target_os = "android")]
+fn set_quality_level(level: usize) {
+    scrap::android::call_main_service_set_by_name(
+        "quality_level",
+        Some(level.to_string().as_str()),
+        None,
+    )
+    .ok();
+}
+
+// Seconds without screen activity before the Android capture drops to a trickle, 0 or empty never.
+// Activity is reported by the accessibility service, and by rust seeing a changed frame.
+#[cfg(target_os = "android")]
+fn set_capture_quiet_period() {
+    use hbb_common::config::keys::OPTION_ANDROID_CAPTURE_QUIET_PERIOD as QUIET;
+
+    let secs = Config::get_option(QUIET).parse::<u32>().unwrap_or(0);
+    scrap::android::call_main_service_set_by_name(
+        "capture_quiet_period",
+        Some(secs.to_string().as_str()),
+        None,
+    )
+    .ok();
+}
+
+// Long edge asked by each viewer with `ChangeResolution`, by connection id.
+#[cfg(target_os = "android")]
+lazy_static::lazy_static! {
+    static ref ANDROID_REQUESTED_MAX_SIZES: Mutex<HashMap<i32, u32>> = Default::default();
+}
+
+// The viewer matches the capture to its window, the option still caps it. 0 for no request.
+#[cfg(target_os = "android")]
+pub fn request_capture_max_size(conn_id: i32, size: u32) {
+    let mut sizes = ANDROID_REQUESTED_MAX_SIZES.lock().unwrap();
+    let old = if size == 0 {
+        sizes.remove(&conn_id)
+    } else {
+        sizes.insert(conn_id, size)
+    };
+    drop(sizes);
+    if old != Some(size) {
+        set_capture_max_size();
+    }
+}
+
+// The request goes with the connection.
+#[cfg(target_os = "android")]
+pub fn clear_capture_max_size(conn_id: i32) {
+    let removed = ANDROID_REQUESTED_MAX_SIZES
+        .lock()
+        .unwrap()
+        .remove(&conn_id)
+        .is_some();
+    if removed {
+        set_capture_max_size();
+    }
+}
+
+// Long edge of the Android capture in pixels, the scale is fractional, 0 for the screen size.
+// The capture size changes without stopping the media projection, the service switches when it sees it.
+#[cfg(target_os = "android")]
+fn set_capture_max_size() {
+    use hbb_common::config::keys::OPTION_ANDROID_CAPTURE_MAX_SIZE as MAX_SIZE;
+
+    let option = Config::get_option(MAX_SIZE).parse::<u32>().unwrap_or(0);
+    // All viewers share the capture, the largest window gets the detail it asked for.
+    let requested = ANDROID_REQUESTED_MAX_SIZES
+        .lock()
+        .unwrap()
+        .values()
+        .copied()
+        .max()
+        .unwrap_or(0);
+    let size = match (option, requested) {
+        (0, r) => r,
+        (o, 0) => o,
+        (o, r) => o.min(r),
+    };
+    scrap::android::call_main_service_set_by_name(
+        "capture_max_size",
+        Some(size.to_string().as_str()),
+        None,
+    )
+    .ok();
+}
+
+// Counters of the Android capture path since the capture started, see CaptureStats.kt
+#[cfg(target_os = "android")]
+fn log_capture_stats() {
+    match scrap::android::call_main_service_get_by_name("capture_stats") {
+        Ok(stats) => log::debug!("capture stats: {stats}"),
+        Err(e) => log::debug!("Failed to get capture stats: {e}"),
+    }
+    match scrap::android::call_main_service_get_by_name("pipeline_stats") {
+        Ok(stats) => log::debug!("pipeline stats: {stats}"),
+        Err(e) => log::debug!("Failed to get pipeline stats: {e}"),
+    }
+    if let Some((avg_us, max_us)) = scrap::android::take_video_wire_latency() {
+        log::debug!("glass to wire latency: avg {avg_us}us, max {max_us}us");
+    }
+}
+
 fn check_privacy_mode_changed(
     sp: &GenericService,
     display_idx: usize,
@@ -1238,7 +1451,13 @@ fn check_qos(
     name: &str,
 ) -> ResultType<()> {
     let mut video_qos = VIDEO_QOS.lock().unwrap();
+    #[cfg(target_os = "android")]
+    let old_spf = *spf;
     *spf = video_qos.spf();
+    #[cfg(target_os = "android")]
+    if *spf != old_spf {
+        set_capture_fps(video_qos.fps());
+    }
     if *ratio != video_qos.ratio() {
         *ratio = video_qos.ratio();
         if encoder.support_changing_quality() {
@@ -1256,12 +1475,21 @@ fn check_qos(
         log::info!("switch due to record changed");
         bail!("SWITCH");
     }
+    #[cfg(target_os = "android")]
+    let old_level = video_qos.quality_level();
     if second_instant.elapsed() > Duration::from_secs(1) {
         *second_instant = Instant::now();
         video_qos.update_display_data(&name, *send_counter);
         *send_counter = 0;
     }
+    #[cfg(target_os = "android")]
+    let level = video_qos.quality_level();
     drop(video_qos);
+    // Not under the lock, the capturer may restart its video.
+    #[cfg(target_os = "android")]
+    if level != old_level {
+        set_quality_level(level);
+    }
     Ok(())
 }
 
@@ -1276,6 +1504,28 @@ pub fn set_take_screenshot(display_idx: usize, sid: String, tx: Sender) {
     );
 }
 
+// The Android service encodes a snapshot of the latest frame, so the screenshot neither waits
+// for a changed frame nor switches away from the surface encoder.
+#[cfg(target_os = "android")]
+pub fn take_android_screenshot(display_idx: usize, sid: String, tx: Sender) {
+    std::thread::spawn(move || {
+        let png = scrap::android::get_snapshot("png", 100, 0)
+            .ok()
+            .and_then(|s| serde_json::from_str::<serde_json::Value>(&s).ok())
+            .and_then(|v| v["data"].as_str().and_then(|d| crate::decode64(d).ok()));
+        let Some(png) = png else {
+            // the next captured frame is used instead
+            set_take_screenshot(display_idx, sid, tx);
+            refresh();
+            return;
+        };
+        let mut response = ScreenshotResponse::new();
+        response.sid = sid;
+        response.data = png.into();
+        send_screenshot_response(&tx, response);
+    });
+}
+
 // We need to this function, because the `stride` may be larger than `width * 4`.
 fn get_rgba_from_pixelbuf<'a>(pixbuf: &scrap::PixelBuffer<'a>) -> ResultType<Vec<u8>> {
     let w = pixbuf.width();
@@ -1285,10 +1535,19 @@ fn get_rgba_from_pixelbuf<'a>(pixbuf: &scrap::PixelBuffer<'a>) -> ResultType<Vec
         bail!("Invalid pixel buf stride.")
     };
 
-    if *s == w * 4 {
+    if *s == w * 4 || pixbuf.pixfmt() == scrap::Pixfmt::I420 {
         let mut rgba = vec![];
         scrap::convert(pixbuf, scrap::Pixfmt::RGBA, &mut rgba)?;
         Ok(rgba)
+    } else if pixbuf.pixfmt() == scrap::Pixfmt::RGBA {
+        // Padded rows, e.g. `Image.Plane` on Android.
+        let data = pixbuf.data();
+        let mut rgba = Vec::with_capacity(w * h * 4);
+        for y in 0..h {
+            let i = s * y;
+            rgba.extend_from_slice(&data[i..i + w * 4]);
+        }
+        Ok(rgba)
     } else {
         let bgra = pixbuf.data();
         let mut bit_flipped = Vec::with_capacity(w * h * 4);
@@ -1329,12 +1588,13 @@ fn handle_screenshot(screenshot: Screenshot, msg: String, w: usize, h: usize, da
     } else {
         response.msg = msg;
     }
+    send_screenshot_response(&screenshot.tx, response);
+}
+
+fn send_screenshot_response(tx: &Sender, response: ScreenshotResponse) {
     let mut msg_out = Message::new();
     msg_out.set_screenshot_response(response);
-    if let Err(e) = screenshot
-        .tx
-        .send((hbb_common::tokio::time::Instant::now(), Arc::new(msg_out)))
-    {
+    if let Err(e) = tx.send((hbb_common::tokio::time::Instant::now(), Arc::new(msg_out))) {
         log::error!("Failed to send screenshot, {}", e);
     }
 }